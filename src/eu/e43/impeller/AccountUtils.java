@@ -1,6 +1,5 @@
 package eu.e43.impeller;
 
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 
@@ -9,6 +8,7 @@ import org.json.JSONObject;
 import android.accounts.Account;
 import android.content.Context;
 import eu.e43.impeller.account.OAuth;
+import eu.e43.impeller.net.Response;
 
 public class AccountUtils {
 	public static JSONObject whoIs(Context ctx, Account acct) throws Exception {
@@ -16,8 +16,8 @@ public class AccountUtils {
 		String host     = uri.getHost();
 
 		URL url = new URL("https", host, "api/whoami");
-		HttpURLConnection conn = OAuth.fetchAuthenticated(ctx, acct, url);
+		Response res = OAuth.fetchAuthenticated(ctx, acct, url);
 		
-		return new JSONObject(Utils.readAll(conn.getInputStream()));
+		return new JSONObject(res.readString());
 	}
 }
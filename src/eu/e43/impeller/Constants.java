@@ -6,6 +6,7 @@ public class Constants {
     public static final String PREF_SYNC_FREQUENCY = "sync_frequency";
     public static final String PREF_LOCATION_MAPS  = "location_maps";
     public static final String PREF_MY_LOCATION    = "my_location";
+    public static final String PREF_DATA_SAVER     = "data_saver";
 
     public static final int MY_LOCATION_NEVER = 0;
     public static final int MY_LOCATION_FETCH = 1;
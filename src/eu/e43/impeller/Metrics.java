@@ -0,0 +1,60 @@
+package eu.e43.impeller;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide performance counters.
+ *
+ * Counters are created on first use and named "area.what", e.g. "http.notModified". They are
+ * only ever logged (see log()), normally at the end of a sync.
+ */
+public class Metrics {
+    private static final String TAG = "Metrics";
+    private static final Map<String, AtomicLong> ms_counters = new TreeMap<String, AtomicLong>();
+
+    private static AtomicLong get(String name) {
+        synchronized(ms_counters) {
+            AtomicLong counter = ms_counters.get(name);
+            if(counter == null) {
+                counter = new AtomicLong();
+                ms_counters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    public static void add(String name, long delta) {
+        get(name).addAndGet(delta);
+    }
+
+    public static void increment(String name) {
+        get(name).incrementAndGet();
+    }
+
+    /** Raise a high water mark counter to value, if it is lower */
+    public static void max(String name, long value) {
+        AtomicLong counter = get(name);
+        long current;
+        while((current = counter.get()) < value && !counter.compareAndSet(current, value));
+    }
+
+    public static long value(String name) {
+        return get(name).get();
+    }
+
+    /** Log every counter whose name starts with prefix (which may be empty) */
+    public static void log(String prefix) {
+        StringBuilder sb = new StringBuilder();
+        synchronized(ms_counters) {
+            for(Map.Entry<String, AtomicLong> e : ms_counters.entrySet()) {
+                if(e.getKey().startsWith(prefix))
+                    sb.append(' ').append(e.getKey()).append('=').append(e.getValue().get());
+            }
+        }
+        Log.i(TAG, "Counters:" + sb);
+    }
+}
@@ -1,11 +1,13 @@
 package eu.e43.impeller;
 
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
 import eu.e43.impeller.activity.ActivityWithAccount;
+import eu.e43.impeller.net.HttpCompression;
+import eu.e43.impeller.net.Request;
+import eu.e43.impeller.net.Response;
+import eu.e43.impeller.net.Transport;
 import oauth.signpost.OAuthConsumer;
 
 import org.json.JSONObject;
@@ -41,24 +43,27 @@ public class PostTask extends AsyncTask<String, Void, JSONObject> {
 			Uri outboxUri = Utils.getUserUri(m_ctx, m_ctx.m_account, "feed");
 		
 			URL url = new URL(outboxUri.toString());
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-			conn.setDoOutput(true);
-			conn.setDoInput(true);
-			conn.setRequestMethod("POST");
-			conn.setRequestProperty("Content-Type", "application/json");
-			cons.sign(conn);
-			
-			OutputStream os = conn.getOutputStream();
-			OutputStreamWriter wr = new OutputStreamWriter(os);
-			wr.write(activity);
-			wr.close();
-						
-			if(conn.getResponseCode() != 200) {
-				Log.e(TAG, "Error posting: " + Utils.readAll(conn.getErrorStream()));
+			byte[] body = activity.getBytes("UTF-8");
+			boolean compress = HttpCompression.shouldCompressRequest(m_ctx, url.getHost(), body.length);
+
+			Response res = post(cons, url, body, compress);
+			int status = res.getStatus();
+			if(compress && (status == HttpURLConnection.HTTP_BAD_REQUEST
+					|| status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE)) {
+				// Maybe the server can't read a gzipped body; if so, don't send it another
+				res.close();
+				res = post(cons, url, body, false);
+				status = res.getStatus();
+				if(status == 200)
+					HttpCompression.refuseCompressedRequests(m_ctx, url.getHost());
+			}
+
+			if(status != 200) {
+				Log.e(TAG, "Error posting: " + res.readString());
 				return null;
 			}
 			
-			JSONObject result = new JSONObject(Utils.readAll(conn.getInputStream()));
+			JSONObject result = new JSONObject(res.readString());
 			
 			return result;
 		} catch (Exception e) {
@@ -67,6 +72,16 @@ public class PostTask extends AsyncTask<String, Void, JSONObject> {
 		}
 	}
 	
+	private static Response post(OAuthConsumer cons, URL url, byte[] body, boolean compress) throws Exception {
+		Request req = new Request(url).sign(cons);
+		if(compress) {
+			body = HttpCompression.compress(body);
+			req.header("Content-Encoding", "gzip");
+		}
+		req.post("application/json", Request.bytes(body));
+		return Transport.get().execute(req);
+	}
+
 	@Override
 	protected void onPostExecute(JSONObject res) {
 		m_cb.call(res);
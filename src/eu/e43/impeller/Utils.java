@@ -147,8 +147,7 @@ public class Utils {
 	public static byte[] sha1(String text) {
 		try {
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
-			md.update(text.getBytes("utf-8"), 0, text.length());
-			return md.digest();
+			return md.digest(text.getBytes("utf-8"));
 		} catch(NoSuchAlgorithmException e) {
 			throw new RuntimeException(e);
 		} catch(UnsupportedEncodingException e) {
@@ -166,8 +165,8 @@ public class Utils {
 		char[] hex = new char[sha.length * 2];
 		
 		for(int i = 0; i < sha.length; i++) {
-			hex[2 * i + 0] = HEX_DIGITS[sha[i]        & 0x0F];
-			hex[2 * i + 1] = HEX_DIGITS[(sha[1] >> 4) & 0x0F];
+			hex[2 * i + 0] = HEX_DIGITS[(sha[i] >> 4) & 0x0F];
+			hex[2 * i + 1] = HEX_DIGITS[sha[i]        & 0x0F];
 		}
 		
 		return new String(hex);
@@ -0,0 +1,52 @@
+package eu.e43.impeller.account;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import oauth.signpost.exception.OAuthMessageSignerException;
+import oauth.signpost.http.HttpRequest;
+import oauth.signpost.http.RequestParameters;
+import oauth.signpost.signature.OAuthMessageSigner;
+import oauth.signpost.signature.SignatureBaseString;
+
+/**
+ * HMAC-SHA1 request signing, as signpost's HmacSha1MessageSigner, except that the keyed Mac is
+ * kept from one request to the next rather than looked up and keyed from the secrets for
+ * every signature. It is rebuilt if the secrets change.
+ */
+class CachedHmacSigner extends OAuthMessageSigner {
+    private static final String MAC_NAME = "HmacSHA1";
+
+    private transient Mac    m_mac;
+    private transient String m_key;
+
+    @Override
+    public String getSignatureMethod() {
+        return "HMAC-SHA1";
+    }
+
+    @Override
+    public synchronized String sign(HttpRequest request, RequestParameters requestParameters)
+            throws OAuthMessageSignerException {
+        try {
+            String key = oauth.signpost.OAuth.percentEncode(getConsumerSecret()) + '&'
+                       + oauth.signpost.OAuth.percentEncode(getTokenSecret());
+            if(m_mac == null || !key.equals(m_key)) {
+                Mac mac = Mac.getInstance(MAC_NAME);
+                mac.init(new SecretKeySpec(key.getBytes(oauth.signpost.OAuth.ENCODING), MAC_NAME));
+                m_mac = mac;
+                m_key = key;
+            }
+
+            String sbs = new SignatureBaseString(request, requestParameters).generate();
+            return base64Encode(m_mac.doFinal(sbs.getBytes(oauth.signpost.OAuth.ENCODING))).trim();
+        } catch(GeneralSecurityException e) {
+            throw new OAuthMessageSignerException(e);
+        } catch(UnsupportedEncodingException e) {
+            throw new OAuthMessageSignerException(e);
+        }
+    }
+}
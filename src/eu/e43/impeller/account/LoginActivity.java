@@ -15,14 +15,15 @@
 
 package eu.e43.impeller.account;
 
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Map;
 
 import eu.e43.impeller.Constants;
 import eu.e43.impeller.content.PumpContentProvider;
+import eu.e43.impeller.net.Request;
+import eu.e43.impeller.net.Response;
+import eu.e43.impeller.net.Transport;
 import oauth.signpost.OAuthConsumer;
 import oauth.signpost.OAuthProvider;
 import oauth.signpost.basic.DefaultOAuthProvider;
@@ -199,31 +200,11 @@ public class LoginActivity extends AccountAuthenticatorActivity implements OnCli
 			JSONObject whoAmI;
 			try {
 				URL url = new URL("https", m_host, "/api/whoami");
-				HttpURLConnection conn;
-				loop: while(true) {
-					conn = (HttpURLConnection) url.openConnection();
-					conn.setInstanceFollowRedirects(false);
-					m_consumer.sign(conn);
-					conn.connect();
-					switch(conn.getResponseCode()) {
-						case 200:
-							break loop;  
-							
-						case 301:
-						case 302:
-						case 303:
-						case 307:
-							url = new URL(conn.getHeaderField("Location"));
-							Log.v(TAG, "Following redirect to" + url);
-							continue;
-							
-						default:
-							String err = Utils.readAll(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
-							throw new Exception(err);
-					}
-				}
+				Response res = Transport.get().execute(new Request(url).sign(m_consumer));
+				if(res.getStatus() != 200)
+					throw new Exception(res.readString());
 				
-				whoAmI = new JSONObject(Utils.readAll(conn.getInputStream()));
+				whoAmI = new JSONObject(res.readString());
 			} catch(Exception e) {
 				Log.e(TAG, "Error getting whoami", e);
 				return null;
@@ -244,6 +225,7 @@ public class LoginActivity extends AccountAuthenticatorActivity implements OnCli
 			if(tokenInfo != null) {
 				Account account = new Account(tokenInfo.getString("username") + "@" + tokenInfo.getString("host"), Authenticator.ACCOUNT_TYPE);
 				m_accountManager.addAccountExplicitly(account, "(Ignored)", tokenInfo);
+				OAuth.invalidate(account);
 
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(LoginActivity.this);
                 long frequency =
@@ -1,13 +1,13 @@
 package eu.e43.impeller.account;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.Map;
 
-import eu.e43.impeller.ImpellerApplication;
+import eu.e43.impeller.Metrics;
+import eu.e43.impeller.net.Request;
+import eu.e43.impeller.net.Response;
+import eu.e43.impeller.net.Transport;
 import oauth.signpost.OAuthConsumer;
 import oauth.signpost.basic.DefaultOAuthConsumer;
 
@@ -15,6 +15,7 @@ import org.json.JSONObject;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -34,7 +35,6 @@ public class OAuth {
 		}
 		
 		URL endpoint = new URL("https", host, "/api/client/register");
-		HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
 				
 		HashMap<String, String> params = new HashMap<String, String>();
 		params.put("type", "client_associate");
@@ -43,21 +43,18 @@ public class OAuth {
 		params.put("client_name", "Impeller");
 		params.put("application_name", "Impeller");
 		String requestBody = Utils.encode(params);
-		conn.setDoOutput(true);
-		conn.setDoInput(true);
 		
 		Log.v(TAG, "Registering client for host " + host);	
-		Writer w = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
-		w.write(requestBody);
-		w.close();
+		Response res = Transport.get().execute(new Request(endpoint)
+				.post("application/x-www-form-urlencoded", Request.bytes(requestBody.getBytes("UTF-8"))));
 		
-		if(conn.getResponseCode() != 200) {
-			String msg = Utils.readAll(new InputStreamReader(conn.getErrorStream()));
+		if(res.getStatus() != 200) {
+			String msg = res.readString();
 			Log.e(TAG, "Server returned an error response: " + msg);
-			throw new IOException("Server returned error response " + conn.getResponseMessage());
+			throw new IOException("Server returned error response " + res.getStatus());
 		}
 		
-		String response = Utils.readAll(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+		String response = res.readString();
 		JSONObject json = new JSONObject(response);
 		
 		Editor e = prefs.edit();
@@ -70,66 +67,101 @@ public class OAuth {
 				json.getString("client_secret"));
 	}
 	
-	public static OAuthConsumer getConsumerForAccount(Context ctx, Account acct) {
-		Log.i(TAG, "Get consumer for account " + acct.name);
+	/** Everything needed to sign requests as an account, which would otherwise take several
+	 *  AccountManager calls per request */
+	private static class AccountSigner {
+		final String        host;
+		final OAuthConsumer consumer;
+
+		AccountSigner(String host, OAuthConsumer consumer) {
+			this.host     = host;
+			this.consumer = consumer;
+		}
+	}
+
+	/* By account name. Emptied whenever the accounts change */
+	private static final HashMap<String, AccountSigner> ms_signers = new HashMap<String, AccountSigner>();
+	private static boolean ms_listening = false;
+
+	private static synchronized AccountSigner getSigner(Context ctx, Account acct) {
 		AccountManager mgr = AccountManager.get(ctx);
+		if(!ms_listening) {
+			// Registered for the life of the process, so not through an Activity's manager
+			AccountManager.get(ctx.getApplicationContext()).addOnAccountsUpdatedListener(new OnAccountsUpdateListener() {
+				@Override
+				public void onAccountsUpdated(Account[] accounts) {
+					invalidate(null);
+				}
+			}, null, false);
+			ms_listening = true;
+		}
 
-		String clientId     = mgr.getUserData(acct, "clientId");
-		String clientSecret = mgr.getUserData(acct, "clientSecret");
-		String token        = mgr.getUserData(acct, "token");
-		String tokenSecret  = mgr.getUserData(acct, "tokenSecret");
-			
-		DefaultOAuthConsumer c = new DefaultOAuthConsumer(clientId, clientSecret);
-		c.setTokenWithSecret(token,  tokenSecret);
-		return c;
-		
+		AccountSigner signer = ms_signers.get(acct.name);
+		if(signer == null) {
+			Log.v(TAG, "Create consumer for account " + acct.name);
+			Metrics.increment("oauth.signerMisses");
+
+			String clientId     = mgr.getUserData(acct, "clientId");
+			String clientSecret = mgr.getUserData(acct, "clientSecret");
+			String token        = mgr.getUserData(acct, "token");
+			String tokenSecret  = mgr.getUserData(acct, "tokenSecret");
+
+			DefaultOAuthConsumer c = new DefaultOAuthConsumer(clientId, clientSecret);
+			c.setMessageSigner(new CachedHmacSigner());
+			c.setTokenWithSecret(token,  tokenSecret);
+
+			signer = new AccountSigner(mgr.getUserData(acct, "host"), c);
+			ms_signers.put(acct.name, signer);
+		}
+		return signer;
+	}
+
+	/** Forget the cached credentials of acct (or of every account, if null), e.g. because its
+	 *  tokens have changed */
+	public static synchronized void invalidate(Account acct) {
+		if(acct != null) {
+			ms_signers.remove(acct.name);
+		} else {
+			ms_signers.clear();
+		}
+	}
+
+	/** The consumer for acct. It is shared, so sign with it through a Transport */
+	public static OAuthConsumer getConsumerForAccount(Context ctx, Account acct) {
+		return getSigner(ctx, acct).consumer;
 	}
 	
-	public static HttpURLConnection fetchAuthenticated(Context ctx, Account acct, URL url) throws Exception {
+	public static Response fetchAuthenticated(Context ctx, Account acct, URL url) throws Exception {
 		return fetchAuthenticated(ctx, acct, url, true);
 	}
 	
-	public static HttpURLConnection fetchAuthenticated(Context ctx, Account acct, URL url, boolean throwOnError) throws Exception {
-		Log.i(TAG, "Authenticated fetch of " + url);
-		for(int i = 0; i < 5; i++) {
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestProperty("User-Agent", "E43 Impeller/" + ImpellerApplication.ms_versionCode);
-			conn.setInstanceFollowRedirects(false);
-            conn.setConnectTimeout(15000);
-            conn.setReadTimeout(15000);
-			
-			if(url.getHost().equals(((AccountManager)ctx.getSystemService(Context.ACCOUNT_SERVICE)).getUserData(acct, "host"))) {
-				OAuthConsumer cons = getConsumerForAccount(ctx, acct);
-				cons.sign(conn);
-			}
+	public static Response fetchAuthenticated(Context ctx, Account acct, URL url, boolean throwOnError) throws Exception {
+		return fetchAuthenticated(ctx, acct, url, throwOnError, null);
+	}
+
+	/** As above, additionally sending the specified request headers (e.g. validators for a
+	 *  conditional GET). Requests to the account's host, redirects included, are signed */
+	public static Response fetchAuthenticated(Context ctx, Account acct, URL url, boolean throwOnError,
+											  Map<String, String> headers) throws Exception {
+		Log.v(TAG, "Authenticated fetch of " + url);
+		AccountSigner signer = getSigner(ctx, acct);
+		Request req = new Request(url)
+				.headers(headers)
+				.sign(signer.consumer, signer.host);
+
+		Response res = Transport.get().execute(req);
+		switch(res.getStatus()) {
+		case 200: // Success
+		case 304: // Not modified
+			Log.v(TAG, "Fetch complete (" + res.getStatus() + ")");
+			return res;
 			
-			conn.connect();
-		
-			switch(conn.getResponseCode()) {
-			case 200: // Success
-			case 304: // Not modified
-				Log.v(TAG, "Fetch complete (" + conn.getResponseCode() + ")");
-				return conn;
-				
-			case 301: // Moved permanently
-			case 302: // Found
-			case 303: // See other
-			case 307: // Moved temporarily
-				// Redirect
-				url = new URL(conn.getHeaderField("Location"));
-				Log.v(TAG, "Following redirect to" + url);
-				break;
-				
-			default:
-				if(throwOnError) {
-					String err = Utils.readAll(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
-					throw new Exception(err);
-				} else {
-					return conn;
-				}
+		default:
+			if(throwOnError) {
+				throw new Exception(res.readString());
+			} else {
+				return res;
 			}
 		}
-		
-		throw new Exception("Redirection limit exceeded");
 	}
 }
@@ -44,7 +44,6 @@ import com.tokenautocomplete.TokenCompleteTextView;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -55,6 +54,9 @@ import eu.e43.impeller.Constants;
 import eu.e43.impeller.LocationServices;
 import eu.e43.impeller.PostTask;
 import eu.e43.impeller.content.PumpContentProvider;
+import eu.e43.impeller.net.Request;
+import eu.e43.impeller.net.Response;
+import eu.e43.impeller.net.Transport;
 import eu.e43.impeller.ogp.MetaElement;
 import eu.e43.impeller.ogp.OpenGraph;
 import eu.e43.impeller.uikit.LocationAdapter;
@@ -642,8 +644,7 @@ public class PostActivity extends ActivityWithAccount implements LoaderManager.L
 
             try {
                 String type = getContentResolver().getType(imageUri);
-                AssetFileDescriptor imgFile = getContentResolver().openAssetFileDescriptor(imageUri, "r");
-                InputStream is = imgFile.createInputStream();
+                final AssetFileDescriptor imgFile = getContentResolver().openAssetFileDescriptor(imageUri, "r");
                 OAuthConsumer cons = OAuth.getConsumerForAccount(PostActivity.this, m_account);
 
                 Uri uploadUri = Utils.getUserUri(PostActivity.this, m_account, "uploads");
@@ -651,38 +652,37 @@ public class PostActivity extends ActivityWithAccount implements LoaderManager.L
                 Log.v(TAG, "Uploading to " + uploadUri);
 
                 URL uploadUrl = new URL(uploadUri.toString());
-                HttpURLConnection conn = (HttpURLConnection) uploadUrl.openConnection();
-
-                conn.setRequestMethod("POST");
+                Request req = new Request(uploadUrl).sign(cons).post(type, new Request.Body() {
+                    @Override
+                    public long getLength() {
+                        return imgFile.getLength();
+                    }
 
-                long length = imgFile.getLength();
-                if(length == AssetFileDescriptor.UNKNOWN_LENGTH || length >= Integer.MAX_VALUE) {
-                    conn.setChunkedStreamingMode(4096);
-                } else {
-                    conn.setFixedLengthStreamingMode((int) length);
-                }
-                conn.setRequestProperty("Content-Type", type);
-                cons.sign(conn);
-                OutputStream os = conn.getOutputStream();
-
-                byte[] buf = new byte[4096];
-                long progress = 0;
-                int read = is.read(buf);
-                while(read > 0) {
-                    progress += read;
-                    publishProgress(length, progress);
-                    os.write(buf, 0, read);
-                    read = is.read(buf);
-                }
-                os.close();
+                    @Override
+                    public void writeTo(OutputStream os) throws IOException {
+                        InputStream is = imgFile.createInputStream();
+                        long length = imgFile.getLength();
+                        byte[] buf = new byte[4096];
+                        long progress = 0;
+                        int read = is.read(buf);
+                        while(read > 0) {
+                            progress += read;
+                            publishProgress(length, progress);
+                            os.write(buf, 0, read);
+                            read = is.read(buf);
+                        }
+                        is.close();
+                    }
+                });
 
-                if(conn.getResponseCode() != 200) {
-                    String err = Utils.readAll(conn.getErrorStream());
+                Response res = Transport.get().execute(req);
+                if(res.getStatus() != 200) {
+                    String err = res.readString();
                     Log.e(TAG, "Server returned error: " + err);
                     return null;
                 }
 
-                String json = Utils.readAll(conn.getInputStream());
+                String json = res.readString();
                 return new JSONObject(json);
             } catch (Exception e) {
                 Log.e(TAG, "Error posting image", e);
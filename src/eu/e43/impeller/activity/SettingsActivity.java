@@ -72,6 +72,7 @@ public class SettingsActivity extends PreferenceActivity {
         // their values. When their values change, their summaries are updated
         // to reflect the new value, per the Android Design guidelines.
         bindPreferenceSummaryToValue(findPreference("my_location"));
+        bindPreferenceSummaryToValue(findPreference("data_saver"));
         bindPreferenceToListener(findPreference("sync_frequency"), sSyncFrequencyListener);
     }
 
@@ -20,7 +20,8 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -30,6 +31,10 @@ import eu.e43.impeller.Utils;
 import eu.e43.impeller.account.Authenticator;
 import eu.e43.impeller.account.OAuth;
 import eu.e43.impeller.content.PumpContentProvider;
+import eu.e43.impeller.net.BandwidthPolicy;
+import eu.e43.impeller.net.DiskCache;
+import eu.e43.impeller.net.HostUnavailableException;
+import eu.e43.impeller.net.Response;
 
 /**
  * Created by OShepherd on 27/06/13.
@@ -57,21 +62,29 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     private void syncPerson(Account account,
                             JSONObject person,
                             ContentResolver resolver,
-                            List<ContentProviderOperation> operations) throws Exception {
+                            List<ContentProviderOperation> operations,
+                            BandwidthPolicy policy) throws Exception {
 
         SyncOperation op = new SyncOperation(m_context, resolver, account, person.getString("id"), operations);
         op.setNickname(person.getString("preferredUsername"));
         if(person.has("displayName")) op.setDisplayName(person.getString("displayName"));
         if(person.has("image")) {
-            JSONObject image = person.getJSONObject("image");
-            JSONObject pump_io = person.optJSONObject("pump_io");
-            if(pump_io != null) {
-                JSONObject fullImage = pump_io.optJSONObject("fullImage");
-                if(fullImage != null) {
-                    image = fullImage;
-                } else Log.v(TAG, "No fullImage");
-            } else Log.v(TAG, "No pump_io");
-            op.setPhotoUri(Utils.getImageUrl(image));
+            op.setPhotoUri(Utils.getImageUrl(policy.getImage(person)));
+        }
+    }
+
+    /** The photo at url, from the image cache shared with ImageLoader if it is there */
+    private InputStream getPhoto(Account account, String url) throws Exception {
+        DiskCache cache = DiskCache.getImageCache(m_context);
+        InputStream cached = cache.get(url);
+        if(cached != null)
+            return cached;
+
+        Response res = OAuth.fetchAuthenticated(m_context, account, new URL(url), true);
+        try {
+            return cache.put(url, res.getBody());
+        } finally {
+            res.close();
         }
     }
 
@@ -93,10 +106,11 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             b.appendPath("following");
             Uri uri = b.build();
 
-            Log.i(TAG, "Beginning sync from " + uri);
+            BandwidthPolicy policy = BandwidthPolicy.get(m_context);
+            Log.i(TAG, "Beginning sync from " + uri + " under " + policy);
 
-            HttpURLConnection conn = OAuth.fetchAuthenticated(m_context, account, new URL(uri.toString()), true);
-            String jsonString = Utils.readAll(conn.getInputStream());
+            Response res = OAuth.fetchAuthenticated(m_context, account, new URL(uri.toString()), true);
+            String jsonString = res.readString();
             JSONObject collection = new JSONObject(jsonString);
             JSONArray items = collection.getJSONArray("items");
 
@@ -106,12 +120,18 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 JSONObject person = items.getJSONObject(i);
                 Log.i(TAG, "Syncing contact " + person.optString("id"));
 
-                syncPerson(account, person, resolver, operations);
+                syncPerson(account, person, resolver, operations, policy);
             }
 
             resolver.applyBatch(ContactsContract.AUTHORITY, operations);
             operations.clear();
 
+            if(!policy.allowBackgroundMedia()) {
+                // Out of date photos keep until a cheaper network
+                Log.i(TAG, "Not updating photos under " + policy);
+                return;
+            }
+
             // Now update all photos which are out of date
             Cursor c = resolver.query(ContactsContract.RawContacts.CONTENT_URI,
                     new String[] { ContactsContract.RawContacts._ID, ContactsContract.RawContacts.SOURCE_ID },
@@ -149,11 +169,19 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                                 ContentUris.withAppendedId(ContactsContract.RawContacts.CONTENT_URI, id),
                                 ContactsContract.RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
 
-                            conn = OAuth.fetchAuthenticated(m_context, account, new URL(newUrl), true);
-
-                            AssetFileDescriptor fd =
-                                    resolver.openAssetFileDescriptor(rawContactPhotoUri, "rw");
-                            Utils.copyBytes(fd.createOutputStream(), conn.getInputStream());
+                            InputStream photo = getPhoto(account, newUrl);
+                            try {
+                                AssetFileDescriptor fd =
+                                        resolver.openAssetFileDescriptor(rawContactPhotoUri, "rw");
+                                OutputStream out = fd.createOutputStream();
+                                try {
+                                    Utils.copyBytes(out, photo);
+                                } finally {
+                                    out.close();
+                                }
+                            } finally {
+                                photo.close();
+                            }
 
                             ContentValues cv = new ContentValues();
                             cv.put(ContactsContract.Data.SYNC2, newUrl);
@@ -170,6 +198,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 }
                 pic_c.close();
             }
+        } catch(HostUnavailableException e) {
+            Log.w(TAG, "Sync deferred: " + e.getMessage());
+            syncResult.stats.numIoExceptions++;
+            e.delay(syncResult);
         } catch(Exception e) {
             Log.e(TAG, "Sync exception", e);
             syncResult.databaseError = true;
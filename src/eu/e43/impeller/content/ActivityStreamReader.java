@@ -0,0 +1,124 @@
+package eu.e43.impeller.content;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads an ActivityStreams collection from a stream one item at a time.
+ *
+ * Only the item currently being processed is held as a JSON tree; everything else is
+ * consumed token by token, so memory use does not depend upon the size of the collection.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class ActivityStreamReader {
+    public interface Listener {
+        /** Called for each entry of the collection's items array, in document order */
+        public void onItem(JSONObject item) throws JSONException;
+    }
+
+    private final JsonReader m_reader;
+
+    public ActivityStreamReader(InputStream in) throws IOException {
+        m_reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+    }
+
+    /** Reads the collection, passing each item to the listener.
+     *
+     * @return The collection's own properties (links, totalItems, ...), minus the items
+     */
+    public JSONObject read(Listener l) throws IOException, JSONException {
+        JSONObject collection = new JSONObject();
+
+        try {
+            m_reader.beginObject();
+            while(m_reader.hasNext()) {
+                String name = m_reader.nextName();
+                if("items".equals(name) && m_reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    m_reader.beginArray();
+                    while(m_reader.hasNext()) {
+                        if(m_reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            l.onItem(readObject());
+                        } else {
+                            m_reader.skipValue();
+                        }
+                    }
+                    m_reader.endArray();
+                } else {
+                    collection.put(name, readValue());
+                }
+            }
+            m_reader.endObject();
+        } catch(IllegalStateException e) {
+            // JsonReader reports structural errors this way
+            throw new JSONException(e.getMessage());
+        }
+
+        return collection;
+    }
+
+    public void close() throws IOException {
+        m_reader.close();
+    }
+
+    private JSONObject readObject() throws IOException, JSONException {
+        JSONObject obj = new JSONObject();
+        m_reader.beginObject();
+        while(m_reader.hasNext()) {
+            String name = m_reader.nextName();
+            obj.put(name, readValue());
+        }
+        m_reader.endObject();
+        return obj;
+    }
+
+    private JSONArray readArray() throws IOException, JSONException {
+        JSONArray arr = new JSONArray();
+        m_reader.beginArray();
+        while(m_reader.hasNext()) {
+            arr.put(readValue());
+        }
+        m_reader.endArray();
+        return arr;
+    }
+
+    private Object readValue() throws IOException, JSONException {
+        switch(m_reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject();
+
+            case BEGIN_ARRAY:
+                return readArray();
+
+            case STRING:
+                return m_reader.nextString();
+
+            case NUMBER:
+                String num = m_reader.nextString();
+                try {
+                    return Long.parseLong(num);
+                } catch(NumberFormatException e) {
+                    return Double.parseDouble(num);
+                }
+
+            case BOOLEAN:
+                return m_reader.nextBoolean();
+
+            case NULL:
+                m_reader.nextNull();
+                return JSONObject.NULL;
+
+            default:
+                throw new JSONException("Unexpected token " + m_reader.peek());
+        }
+    }
+}
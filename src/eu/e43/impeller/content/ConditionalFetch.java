@@ -0,0 +1,133 @@
+package eu.e43.impeller.content;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+
+import eu.e43.impeller.Metrics;
+import eu.e43.impeller.Utils;
+import eu.e43.impeller.account.OAuth;
+import eu.e43.impeller.net.Response;
+
+/**
+ * An authenticated conditional GET.
+ *
+ * The validators (ETag and Last-Modified) of each document we have fetched and stored are kept
+ * in the provider's validators table, by account and URL, and sent when the same account
+ * fetches the same URL again. If the
+ * server answers 304 Not Modified, what we have is current, and the caller skips parsing and
+ * writing altogether.
+ *
+ * The bytes and rows a 304 saves are counted in Metrics as http.bytesSaved and db.writesSaved.
+ * The bytes are those of the decoded body, as read through getBody() or readString(), which
+ * are known whether or not the server sent a Content-Length.
+ */
+class ConditionalFetch {
+    private static final Uri VALIDATORS = Uri.parse(PumpContentProvider.VALIDATOR_URL);
+
+    final Response          response;
+    final boolean           notModified;
+
+    private final String    m_account;
+    private final String    m_url;
+    private long            m_length;
+
+    private ConditionalFetch(Account acct, String url, Response res) {
+        m_account   = acct.name;
+        m_url       = url;
+        response    = res;
+        notModified = res.getStatus() == 304;
+    }
+
+    static ConditionalFetch fetch(Context ctx, Account acct, URL url) throws Exception {
+        String key = url.toString();
+        HashMap<String, String> headers = new HashMap<String, String>();
+        long length = 0, writes = 0;
+
+        Cursor c = ctx.getContentResolver().query(VALIDATORS,
+                new String[] { "etag", "lastModified", "length", "writes" },
+                "account=? AND url=?", new String[] { acct.name, key }, null);
+        try {
+            if(c.moveToFirst()) {
+                if(!c.isNull(0)) headers.put("If-None-Match",     c.getString(0));
+                if(!c.isNull(1)) headers.put("If-Modified-Since", c.getString(1));
+                length = c.getLong(2);
+                writes = c.getLong(3);
+            }
+        } finally {
+            c.close();
+        }
+
+        ConditionalFetch fetch = new ConditionalFetch(acct, key,
+                OAuth.fetchAuthenticated(ctx, acct, url, true, headers));
+
+        if(fetch.notModified) {
+            fetch.response.close();
+            Metrics.increment("http.notModified");
+            Metrics.add("http.bytesSaved", length);
+            Metrics.add("db.writesSaved",  writes);
+        }
+        return fetch;
+    }
+
+    /** The response body, counting the bytes read for complete() */
+    InputStream getBody() throws IOException {
+        return new FilterInputStream(response.getBody()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if(b != -1)
+                    m_length++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int n = super.read(buffer, offset, count);
+                if(n > 0)
+                    m_length += n;
+                return n;
+            }
+        };
+    }
+
+    /** Read the whole response body, and close the response */
+    String readString() throws IOException {
+        try {
+            return Utils.readAll(getBody());
+        } finally {
+            response.close();
+        }
+    }
+
+    /** Record the validators of the response once its body has been read and stored.
+     *
+     * @param writes    Number of rows written from it; a 304 next time saves them
+     */
+    void complete(Context ctx, int writes) {
+        String etag         = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if(notModified || (etag == null && lastModified == null))
+            return;
+
+        ContentValues vals = new ContentValues();
+        vals.put("account",         m_account);
+        vals.put("url",             m_url);
+        vals.put("etag",            etag);
+        vals.put("lastModified",    lastModified);
+        vals.put("length",          m_length);
+        vals.put("writes",          writes);
+
+        ContentResolver res = ctx.getContentResolver();
+        res.insert(VALIDATORS, vals);
+    }
+}
@@ -10,29 +10,33 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
-
-import eu.e43.impeller.Utils;
-import eu.e43.impeller.account.OAuth;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ContentUpdateReceiver extends BroadcastReceiver {
     private final static String TAG = "ContentUpdateReceiver";
     public  final static String UPDATE_REPLIES  = "eu.e43.impeller.UpdateReplies";
     public  final static String UPDATE_OBJECT   = "eu.e43.impeller.UpdateObject";
     public  final static String FETCH_USER_FEED = "eu.e43.impeller.FetchUserFeed";
+    public  final static String CANCEL_REFRESH  = "eu.e43.impeller.CancelRefresh";
+
+    private final static AtomicLong ms_requestCount = new AtomicLong();
 
-    private class ResultData {
+    /* Shared by every receiver instance in the process */
+    private static final RefreshCoalescer ms_coalescer = new RefreshCoalescer();
+    private static final RefreshScheduler ms_scheduler = new RefreshScheduler();
+
+    static class ResultData {
         public ResultData(int code_) {
             code = code_;
         }
@@ -40,31 +44,105 @@ public class ContentUpdateReceiver extends BroadcastReceiver {
         public int      code;
         public String   data;
         public Bundle   extras;
+
+        /* When the refresh finished (elapsedRealtime) */
+        long            completed;
+    }
+
+    /** Ask for content to be refreshed.
+     *
+     * @param action    UPDATE_OBJECT, UPDATE_REPLIES or FETCH_USER_FEED
+     * @return          A token with which to cancel the request
+     */
+    public static String requestRefresh(Context ctx, Account acct, String action, Uri uri) {
+        String token = Process.myPid() + ":" + ms_requestCount.incrementAndGet();
+        ctx.sendOrderedBroadcast(new Intent(action, uri, ctx, ContentUpdateReceiver.class)
+                .putExtra("account", acct)
+                .putExtra("token", token),
+                null, null, null, Activity.RESULT_OK, null, null);
+        return token;
+    }
+
+    /** Withdraw a request made with requestRefresh(), e.g. because its view has gone. The
+     *  refresh is dropped if it hasn't started and nobody else wants it */
+    public static void cancelRefresh(Context ctx, Account acct, String action, Uri uri, String token) {
+        ctx.sendBroadcast(new Intent(CANCEL_REFRESH, uri, ctx, ContentUpdateReceiver.class)
+                .putExtra("account", acct)
+                .putExtra("action", action)
+                .putExtra("token", token));
+    }
+
+    private static int getPriority(Intent intent) {
+        if(UPDATE_OBJECT.equals(intent.getAction()))
+            return RefreshScheduler.PRIORITY_OBJECT;
+        else if(UPDATE_REPLIES.equals(intent.getAction()))
+            return RefreshScheduler.PRIORITY_REPLIES;
+        else
+            return RefreshScheduler.PRIORITY_USER_FEED;
     }
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
+        Account acct = intent.getParcelableExtra("account");
+        String  token = intent.getStringExtra("token");
+
+        if(CANCEL_REFRESH.equals(intent.getAction())) {
+            ms_scheduler.cancel(RefreshCoalescer.key(acct != null ? acct.name : null,
+                    intent.getStringExtra("action"), String.valueOf(intent.getData())), token);
+            return;
+        }
+
+        final String key = RefreshCoalescer.key(
+                acct != null ? acct.name : null, intent.getAction(), String.valueOf(intent.getData()));
+
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             final PendingResult res = goAsync();
-            AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+            int joined = ms_coalescer.join(key, new RefreshCoalescer.Waiter() {
                 @Override
-                protected Void doInBackground(Void... params) {
-                    try {
-                        ResultData data = handleIntent(context, intent);
-
-                        res.setResult(data.code, data.data, data.extras);
-                    } catch(RuntimeException ex) {
-                        Log.e(TAG, "Error", ex);
-                        res.setResultCode(Activity.RESULT_CANCELED);
-                    } finally {
-                        res.finish();
-                    }
-                    return null;
+                public void onResult(ResultData data) {
+                    res.setResult(data.code, data.data, data.extras);
+                    res.finish();
                 }
-            }.execute();
+            });
+
+            if(joined == RefreshCoalescer.JOINED) {
+                ms_scheduler.retain(key, token);
+            } else if(joined == RefreshCoalescer.RUN) {
+                ms_scheduler.submit(new RefreshScheduler.Task(key, getPriority(intent), token) {
+                    @Override
+                    public void run() {
+                        ResultData data = new ResultData(Activity.RESULT_CANCELED);
+                        try {
+                            data = handleIntent(context, intent);
+                        } catch(RuntimeException ex) {
+                            Log.e(TAG, "Error", ex);
+                        } finally {
+                            ms_coalescer.complete(key, data);
+                        }
+                    }
+
+                    @Override
+                    void onCancelled() {
+                        ms_coalescer.complete(key, new ResultData(Activity.RESULT_CANCELED));
+                    }
+                });
+            }
         } else {
-            ResultData data = handleIntent(context, intent);
-            setResult(data.code, data.data, data.extras);
+            // Runs on the main thread, so nothing can be in flight; but a fresh result may be
+            int joined = ms_coalescer.join(key, new RefreshCoalescer.Waiter() {
+                @Override
+                public void onResult(ResultData data) {
+                    setResult(data.code, data.data, data.extras);
+                }
+            });
+            if(joined == RefreshCoalescer.RUN) {
+                ResultData data = new ResultData(Activity.RESULT_CANCELED);
+                try {
+                    data = handleIntent(context, intent);
+                } finally {
+                    ms_coalescer.complete(key, data);
+                }
+            }
         }
     }
 
@@ -106,15 +184,21 @@ public class ContentUpdateReceiver extends BroadcastReceiver {
 
             Log.i(TAG, "Fetch from URL " + fetchURL);
             URL fetchURLObj = new URL(fetchURL);
-            HttpURLConnection conn = OAuth.fetchAuthenticated(context, acct, fetchURLObj);
+            ConditionalFetch fetch = ConditionalFetch.fetch(context, acct, fetchURLObj);
 
-            objJSON = Utils.readAll(conn.getInputStream());
+            if(fetch.notModified) {
+                // What we have is current
+                Log.i(TAG, "updateObject: Not modified: " + uri);
+            } else {
+                objJSON = fetch.readString();
 
-            ContentValues vals = new ContentValues();
-            vals.put("_json", objJSON);
-            res.insert(Uri.parse(PumpContentProvider.OBJECT_URL), vals);
+                ContentValues vals = new ContentValues();
+                vals.put("_json", objJSON);
+                res.insert(Uri.parse(PumpContentProvider.OBJECT_URL), vals);
+                fetch.complete(context, 1);
 
-            Log.i(TAG, "updateObject: Finished for object " + uri);
+                Log.i(TAG, "updateObject: Finished for object " + uri);
+            }
 
 
             ResultData result = new ResultData(Activity.RESULT_OK);
@@ -167,9 +251,13 @@ public class ContentUpdateReceiver extends BroadcastReceiver {
 
             Log.i(TAG, "Fetch from URL " + fetchURL);
             URL fetchURLObj = new URL(fetchURL);
-            HttpURLConnection conn = OAuth.fetchAuthenticated(context, acct, fetchURLObj);
+            ConditionalFetch fetch = ConditionalFetch.fetch(context, acct, fetchURLObj);
+            if(fetch.notModified) {
+                Log.i(TAG, "updateReplies: Not modified: " + uri);
+                return new ResultData(Activity.RESULT_OK);
+            }
 
-            String collJSON = Utils.readAll(conn.getInputStream());
+            String collJSON = fetch.readString();
             collection = new JSONObject(collJSON);
 
             JSONArray items = collection.getJSONArray("items");
@@ -184,6 +272,7 @@ public class ContentUpdateReceiver extends BroadcastReceiver {
                         .build());
             }
             res.applyBatch(PumpContentProvider.AUTHORITY, operations);
+            fetch.complete(context, operations.size());
             Log.i(TAG, "updateReplies: Finished for object " + uri);
 
             return new ResultData(Activity.RESULT_OK);
@@ -232,9 +321,13 @@ public class ContentUpdateReceiver extends BroadcastReceiver {
 
             Log.i(TAG, "Fetch from URL " + fetchURL);
             URL fetchURLObj = new URL(fetchURL);
-            HttpURLConnection conn = OAuth.fetchAuthenticated(context, acct, fetchURLObj);
+            ConditionalFetch fetch = ConditionalFetch.fetch(context, acct, fetchURLObj);
+            if(fetch.notModified) {
+                Log.i(TAG, "fetchUserFeed: Not modified: " + uri);
+                return new ResultData(Activity.RESULT_OK);
+            }
 
-            String feedJSON = Utils.readAll(conn.getInputStream());
+            String feedJSON = fetch.readString();
             JSONObject feed = new JSONObject(feedJSON);
 
             JSONArray items = feed.getJSONArray("items");
@@ -248,6 +341,7 @@ public class ContentUpdateReceiver extends BroadcastReceiver {
                                 .build());
             }
             res.applyBatch(PumpContentProvider.AUTHORITY, operations);
+            fetch.complete(context, operations.size());
             Log.i(TAG, "fetchUserFeed: Finished for " + uri);
 
             return new ResultData(Activity.RESULT_OK);
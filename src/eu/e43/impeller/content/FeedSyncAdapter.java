@@ -3,6 +3,7 @@ package eu.e43.impeller.content;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
+import android.content.ContentProvider;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -13,26 +14,46 @@ import android.content.SharedPreferences;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.net.HttpURLConnection;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
+import eu.e43.impeller.Metrics;
 import eu.e43.impeller.Utils;
 import eu.e43.impeller.account.Authenticator;
 import eu.e43.impeller.account.OAuth;
+import eu.e43.impeller.net.BandwidthPolicy;
+import eu.e43.impeller.net.HostUnavailableException;
+import eu.e43.impeller.net.HttpCompression;
+import eu.e43.impeller.net.Response;
 
 /**
  * Created by OShepherd on 27/06/13.
  */
 public class FeedSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final String TAG = "FeedSyncAdapter";
+
+    /* Activities parsed off the network before they are written, in a transaction of their own */
+    private static final int INGEST_CHUNK_SIZE = 50;
+
+    /** What the engine needs to know about a page once it has been ingested */
+    private static class InboxPage {
+        int     count;
+        String  newestId;
+        String  prevHref;
+    }
     Context             m_context;
     SharedPreferences   m_syncState;
 
@@ -74,6 +95,47 @@ public class FeedSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
+    /** Returns our provider instance if it lives in this process (it normally does) */
+    private static PumpContentProvider getLocalProvider(ContentProviderClient client) {
+        if(client == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+            return null;
+
+        ContentProvider provider = client.getLocalContentProvider();
+        if(provider instanceof PumpContentProvider)
+            return (PumpContentProvider) provider;
+        else
+            return null;
+    }
+
+    /** URL of the page of the inbox following since, or of the newest page if it is null */
+    private Uri getPageUri(Account account, String since, int pageSize) {
+        Uri.Builder b = Utils.getUserUri(m_context, account, "inbox").buildUpon();
+        if(since != null)
+            b.appendQueryParameter("since", since);
+        b.appendQueryParameter("count", String.valueOf(pageSize));
+        return b.build();
+    }
+
+    /** The href of a collection link, with our page size */
+    private static Uri getLinkUri(String href, int pageSize) {
+        Uri link = Uri.parse(href);
+        Uri.Builder b = link.buildUpon().clearQuery();
+        for(String name : new String[] { "since", "before" }) {
+            String value = link.getQueryParameter(name);
+            if(value != null)
+                b.appendQueryParameter(name, value);
+        }
+        b.appendQueryParameter("count", String.valueOf(pageSize));
+        return b.build();
+    }
+
+    /** Walks the inbox from the newest activity we have towards the present, following each
+     *  page's prev link, checkpointing after every page.
+     *
+     * A first sync just fetches the newest page. Otherwise, pages are fetched oldest first,
+     * which keeps the feed (ordered by insertion) in order. The page size and the number of
+     * pages fetched per sync depend on the BandwidthPolicy; the journal records where to resume.
+     */
     @Override
     public void onPerformSync(Account account,
                               Bundle bundle,
@@ -81,56 +143,237 @@ public class FeedSyncAdapter extends AbstractThreadedSyncAdapter {
                               ContentProviderClient contentProviderClient,
                               SyncResult syncResult) {
         try {
-            JSONArray items;
-            AccountManager am = (AccountManager) m_context.getSystemService(Context.ACCOUNT_SERVICE);
             ContentResolver res = m_context.getContentResolver();
             Uri feedContentUri = getFeedUri(account);
+            PumpContentProvider provider = getLocalProvider(contentProviderClient);
+            SyncJournal journal = new SyncJournal(m_syncState, account.name);
+            BandwidthPolicy policy = BandwidthPolicy.get(m_context);
+            int pageSize = policy.getSyncPageSize();
+            Log.i(TAG, "Syncing " + account.name + " under " + policy);
+
+            String head = journal.getHead();
+            if(head == null)
+                head = getLastId(res, feedContentUri);
 
-            do {
-                Uri.Builder b = Utils.getUserUri(m_context, account, "inbox").buildUpon();
-                String lastId = getLastId(res, feedContentUri);
-                if(lastId != null)
-                    b.appendQueryParameter("since", lastId);
-                b.appendQueryParameter("count", "200");
-                Uri uri = b.build();
-
-                Log.i(TAG, "Beginning sync from " + uri);
-
-                HttpURLConnection conn = OAuth.fetchAuthenticated(m_context, account, new URL(uri.toString()), true);
-                String jsonString = Utils.readAll(conn.getInputStream());
-                JSONObject collection = new JSONObject(jsonString);
-                items = collection.getJSONArray("items");
-
-                ArrayList<ContentProviderOperation> actions = new ArrayList<ContentProviderOperation>();
-
-                // Process backwards for linear history order
-                for(int i = items.length() - 1; i >= 0; i--) {
-                    JSONObject item = items.getJSONObject(i);
-                    actions.add(
-                            ContentProviderOperation.newInsert(feedContentUri)
-                            .withValue("_json", item.toString())
-                            .build());
-                    syncResult.stats.numEntries++;
+            boolean walking = head != null;
+            Uri uri;
+            if(journal.getNext() != null) {
+                uri = getLinkUri(journal.getNext(), pageSize);
+                Log.i(TAG, "Resuming sync of " + account.name);
+            } else {
+                uri = getPageUri(account, head, pageSize);
+            }
+
+            for(int pages = 0; uri != null; pages++) {
+                if(pages == policy.getMaxSyncPages()) {
+                    syncResult.moreRecordsToGet = true;
+                    break;
+                }
+
+                Log.i(TAG, "Fetching page " + uri);
+
+                // Not a conditional fetch: a 304 wouldn't tell us the page's newest activity
+                // or prev link, so a walk resumed at a page we had already read would stop
+                InboxPage page;
+                Response pageRes = OAuth.fetchAuthenticated(m_context, account, new URL(uri.toString()));
+                try {
+                    InputStream in = pageRes.getBody();
+                    if(provider != null) {
+                        page = syncPageStreaming(provider, account, in, syncResult);
+                    } else {
+                        page = syncPageBuffered(res, account, feedContentUri, in, syncResult);
+                    }
+                } finally {
+                    pageRes.close();
                 }
 
-                ContentProviderResult[] results = res.applyBatch(PumpContentProvider.AUTHORITY, actions);
-                for(ContentProviderResult result : results) {
-                    Intent noticeIntent = new Intent(PumpContentProvider.ACTION_NEW_FEED_ENTRY);
-                    noticeIntent.putExtra("account", account);
-                    noticeIntent.putExtra("contentUri", result.uri);
+                if(page.newestId != null)
+                    head = page.newestId;
 
-                    Log.i(TAG, "Sending notification " + noticeIntent);
-                    getContext().sendBroadcast(noticeIntent);
+                // A full page means there may be more after it
+                if(walking && page.count >= pageSize) {
+                    uri = page.prevHref != null
+                            ? getLinkUri(page.prevHref, pageSize) : getPageUri(account, head, pageSize);
+                } else {
+                    uri = null;
                 }
 
-                SharedPreferences.Editor e = m_syncState.edit();
-                if(items.length() != 0)
-                    e.putString(account.name, items.getJSONObject(0).getString("id"));
-                e.apply();
-            } while(items.length() == 50);
+                journal.checkpoint(head, uri != null ? uri.toString() : null);
+            }
+        } catch(HostUnavailableException e) {
+            Log.w(TAG, "Sync deferred: " + e.getMessage());
+            syncResult.stats.numIoExceptions++;
+            e.delay(syncResult);
+        } catch(IOException e) {
+            Log.e(TAG, "Sync I/O exception", e);
+            syncResult.stats.numIoExceptions++;
         } catch(Exception e) {
             Log.e(TAG, "Sync exception", e);
             syncResult.databaseError = true;
+        } finally {
+            HttpCompression.logRatios();
+            Metrics.log("");
+        }
+    }
+
+    private static InboxPage getPage(JSONObject collection, int count, String newestId) {
+        InboxPage page = new InboxPage();
+        page.count      = count;
+        page.newestId   = newestId;
+
+        JSONObject links = collection.optJSONObject("links");
+        JSONObject prev  = links != null ? links.optJSONObject("prev") : null;
+        page.prevHref   = prev != null ? prev.optString("href", null) : null;
+        return page;
+    }
+
+    /** Streams the page into the provider, INGEST_CHUNK_SIZE activities at a time.
+     *
+     * Each chunk is parsed off the network and then written in a short batch of its own, so
+     * that no transaction is held open while waiting for the server. The feed is ordered by
+     * insertion, and the server returns the newest entries first, so the feed entries
+     * themselves are only added (oldest first) once the page has been read.
+     *
+     * @return The page's properties
+     */
+    private InboxPage syncPageStreaming(final PumpContentProvider provider,
+                                  Account account,
+                                  InputStream in,
+                                  final SyncResult syncResult) throws Exception {
+        final ArrayList<String>     ids       = new ArrayList<String>();
+        final ArrayList<Long>       published = new ArrayList<Long>();
+        final ArrayList<JSONObject> chunk     = new ArrayList<JSONObject>();
+
+        JSONObject collection = new ActivityStreamReader(in).read(new ActivityStreamReader.Listener() {
+            @Override
+            public void onItem(JSONObject item) throws JSONException {
+                String id = item.getString("id");
+                ids.add(id);
+                published.add(Utils.parseDate(item.optString("published")));
+
+                chunk.add(item);
+                if(chunk.size() == INGEST_CHUNK_SIZE)
+                    ingestChunk(provider, chunk, syncResult);
+            }
+        });
+
+        ingestChunk(provider, chunk, syncResult);
+
+        ArrayList<Uri> newEntries = new ArrayList<Uri>();
+        boolean successful = false;
+        provider.beginBatch();
+        try {
+            for(int i = ids.size() - 1; i >= 0; i--) {
+                Uri entry = provider.ingestFeedEntry(account.name, ids.get(i), published.get(i));
+                if(entry != null)
+                    newEntries.add(entry);
+            }
+            successful = true;
+        } finally {
+            provider.endBatch(successful);
+        }
+
+        notifyNewEntries(account, newEntries);
+        return getPage(collection, ids.size(), ids.isEmpty() ? null : ids.get(0));
+    }
+
+    /** Writes the activities in chunk in a batch of their own, and empties it */
+    private static void ingestChunk(PumpContentProvider provider, List<JSONObject> chunk,
+                                    SyncResult syncResult) {
+        if(chunk.isEmpty())
+            return;
+
+        Uri activitiesUri = Uri.parse(PumpContentProvider.ACTIVITY_URL);
+        boolean successful = false;
+        provider.beginBatch();
+        try {
+            for(JSONObject item : chunk) {
+                provider.ingest(activitiesUri, item);
+                syncResult.stats.numEntries++;
+            }
+            successful = true;
+        } finally {
+            provider.endBatch(successful);
+        }
+        chunk.clear();
+    }
+
+    /** Reads the whole page, then applies it through the content resolver. For when the
+     *  provider isn't in our process or streaming isn't supported.
+     *
+     * @return The page's properties
+     */
+    private InboxPage syncPageBuffered(ContentResolver res,
+                                 Account account,
+                                 Uri feedContentUri,
+                                 InputStream in,
+                                 SyncResult syncResult) throws Exception {
+        String jsonString = Utils.readAll(in);
+        JSONObject collection = new JSONObject(jsonString);
+        JSONArray items = collection.getJSONArray("items");
+
+        ArrayList<ContentProviderOperation> actions = new ArrayList<ContentProviderOperation>();
+        HashSet<String> known = getKnownEntries(res, feedContentUri, items);
+
+        // Process backwards for linear history order
+        ArrayList<Integer> newIndices = new ArrayList<Integer>();
+        for(int i = items.length() - 1; i >= 0; i--) {
+            JSONObject item = items.getJSONObject(i);
+            if(!known.contains(item.optString("id")))
+                newIndices.add(actions.size());
+
+            actions.add(
+                    ContentProviderOperation.newInsert(feedContentUri)
+                    .withValue("_json", item.toString())
+                    .build());
+            syncResult.stats.numEntries++;
+        }
+
+        ContentProviderResult[] results = res.applyBatch(PumpContentProvider.AUTHORITY, actions);
+        ArrayList<Uri> newEntries = new ArrayList<Uri>();
+        for(int i : newIndices) {
+            newEntries.add(results[i].uri);
+        }
+
+        notifyNewEntries(account, newEntries);
+        return getPage(collection, items.length(),
+                items.length() != 0 ? items.getJSONObject(0).getString("id") : null);
+    }
+
+    /** IDs of the items which are already in the feed */
+    private static HashSet<String> getKnownEntries(ContentResolver res, Uri feed, JSONArray items)
+            throws JSONException {
+        HashSet<String> known = new HashSet<String>();
+        if(items.length() == 0)
+            return known;
+
+        String[] ids = new String[items.length()];
+        StringBuilder selection = new StringBuilder("feed_entries.id IN (?");
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = items.getJSONObject(i).optString("id");
+            if(i > 0)
+                selection.append(",?");
+        }
+        selection.append(")");
+
+        Cursor c = res.query(feed, new String[] { "id" }, selection.toString(), ids, null);
+        try {
+            while(c.moveToNext())
+                known.add(c.getString(0));
+        } finally {
+            c.close();
+        }
+        return known;
+    }
+
+    private void notifyNewEntries(Account account, List<Uri> entries) {
+        for(Uri entry : entries) {
+            Intent noticeIntent = new Intent(PumpContentProvider.ACTION_NEW_FEED_ENTRY);
+            noticeIntent.putExtra("account", account);
+            noticeIntent.putExtra("contentUri", entry);
+
+            Log.i(TAG, "Sending notification " + noticeIntent);
+            getContext().sendBroadcast(noticeIntent);
         }
     }
 }
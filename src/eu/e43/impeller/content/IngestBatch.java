@@ -0,0 +1,59 @@
+package eu.e43.impeller.content;
+
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The flattened form of everything ingested since the last flush: each object (including
+ * activities, which are also stored as objects) appears once, however many times it was
+ * embedded in the incoming documents.
+ *
+ * Objects are kept in the order they were first seen, which puts embedded objects before
+ * the objects embedding them.
+ */
+class IngestBatch {
+    /** Object ID to (merged) object */
+    final LinkedHashMap<String, JSONObject> objects = new LinkedHashMap<String, JSONObject>();
+
+    /** IDs of the objects which are activities */
+    final LinkedHashSet<String> activities = new LinkedHashSet<String>();
+
+    /** IDs of every object written out over the lifetime of the batch */
+    final HashSet<String> written = new HashSet<String>();
+
+    /* Statistics, over the lifetime of the batch */
+
+    /** Number of object nodes visited in the incoming documents */
+    int nodes;
+    /** Number of object rows written */
+    int rowsWritten;
+    /** Number of objects which were already stored as they are */
+    int rowsUnchanged;
+    /** Number of SQL statements executed */
+    int statements;
+    /** Time spent writing the batch out */
+    long flushMillis;
+
+    boolean isEmpty() {
+        return objects.isEmpty();
+    }
+
+    int size() {
+        return objects.size();
+    }
+
+    /** Forget the flushed objects, retaining the written IDs and statistics */
+    void clear() {
+        objects.clear();
+        activities.clear();
+    }
+
+    @Override
+    public String toString() {
+        return nodes + " object nodes, " + rowsWritten + " rows written (" + rowsUnchanged
+                + " unchanged) using " + statements + " statements in " + flushMillis + "ms";
+    }
+}
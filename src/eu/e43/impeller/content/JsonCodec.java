@@ -0,0 +1,145 @@
+package eu.e43.impeller.content;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.os.Build;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact storage format for the objects._json column.
+ *
+ * Encoded documents are stored as BLOBs: a format byte, the length of the decoded UTF-8
+ * text, and then the text deflated against a preset dictionary of common ActivityStreams
+ * keys and values. (The dictionary is what makes deflate worthwhile for documents only a few
+ * hundred bytes long). Rows written before the codec existed are plain TEXT, and are
+ * returned as is.
+ *
+ * The dictionary is part of the format: changing it requires a new format byte.
+ */
+class JsonCodec {
+    /** Deflated with DICTIONARY_V1 */
+    private static final byte FORMAT_DEFLATE_V1 = 1;
+    private static final int  HEADER_LENGTH     = 5;
+
+    /* Most frequent strings last: deflate references them with shorter distances */
+    private static final byte[] DICTIONARY_V1 = toUTF8(
+              "\"upstreamDuplicates\":[],\"downstreamDuplicates\":[],\"location\":{"
+            + "\"generator\":{\"bto\":[],\"bcc\":[],\"cc\":[],\"to\":[{\"received\":"
+            + "\"lists\":{\"favorites\":{\"following\":{\"followers\":{"
+            + "\"activity-outbox\":{\"activity-inbox\":{\"self\":{\"links\":{"
+            + "\"preferredUsername\":\"summary\":\"fullImage\":{\"width\":\"height\":"
+            + "\"image\":{\"liked\":false,\"followed\":false,\"shares\":{\"likes\":{"
+            + "\"replies\":{\"totalItems\":0,\"items\":[],\"collection\""
+            + "\"inReplyTo\":{\"comment\"\"note\"\"image\"\"activity\"\"person\""
+            + "\"content\":\"displayName\":\"verb\":\"post\",\"target\":{"
+            + "\"object\":{\"actor\":{\"author\":{\"updated\":\"published\":\""
+            + "\"pump_io\":{\"proxyURL\":\"https://\"url\":\"https://"
+            + "\"href\":\"https://\"/api/user/\"acct:\"objectType\":\""
+            + "\"id\":\"https://\",\"id\":\"");
+
+    static byte[] toUTF8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Cleared by tests which compare storage with and without the codec */
+    private static volatile boolean ms_enabled = true;
+
+    /** Whether this device stores encoded documents. Reading them back through our cursors
+     *  needs Cursor.getType and CrossProcessCursorWrapper */
+    static boolean isEnabled() {
+        return ms_enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /** For tests: store and read plain documents, as before the codec (and the hydrator). Only
+     *  switched while no database is open, as encoded documents can't then be read */
+    static void setEnabled(boolean enabled) {
+        ms_enabled = enabled;
+    }
+
+    static byte[] encode(String json) {
+        byte[] text = toUTF8(json);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(DICTIONARY_V1);
+            deflater.setInput(text);
+            deflater.finish();
+
+            byte[] buf = new byte[HEADER_LENGTH + text.length / 2 + 64];
+            int len = HEADER_LENGTH;
+            while(!deflater.finished()) {
+                if(len == buf.length) {
+                    byte[] bigger = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, bigger, 0, len);
+                    buf = bigger;
+                }
+                len += deflater.deflate(buf, len, buf.length - len);
+            }
+
+            buf[0] = FORMAT_DEFLATE_V1;
+            buf[1] = (byte) (text.length >>> 24);
+            buf[2] = (byte) (text.length >>> 16);
+            buf[3] = (byte) (text.length >>> 8);
+            buf[4] = (byte) (text.length);
+
+            byte[] encoded = new byte[len];
+            System.arraycopy(buf, 0, encoded, 0, len);
+            return encoded;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String decode(byte[] data) {
+        if(data == null)
+            return null;
+
+        if(data.length < HEADER_LENGTH || data[0] != FORMAT_DEFLATE_V1)
+            throw new IllegalArgumentException("Unknown JSON storage format");
+
+        int length = ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16)
+                   | ((data[3] & 0xFF) << 8)  |  (data[4] & 0xFF);
+        byte[] text = new byte[length];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+            int len = 0;
+            while(len < length) {
+                int n = inflater.inflate(text, len, length - len);
+                if(n == 0) {
+                    if(inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY_V1);
+                    } else if(inflater.finished() || inflater.needsInput()) {
+                        throw new IllegalArgumentException("Truncated JSON document");
+                    }
+                }
+                len += n;
+            }
+            return new String(text, "UTF-8");
+        } catch(DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt JSON document", e);
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Read a (possibly encoded) JSON column from a cursor over the database */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static String read(Cursor c, int column) {
+        if(isEnabled() && c.getType(column) == Cursor.FIELD_TYPE_BLOB) {
+            return decode(c.getBlob(column));
+        } else {
+            return c.getString(column);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package eu.e43.impeller.content;
+
+import android.annotation.TargetApi;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.os.Build;
+
+/**
+ * Presents the _json column of a query over the database as text, decoding documents stored
+ * by JsonCodec and reassembling their embedded objects with an ObjectHydrator.
+ *
+ * Our clients live in another process, so the cursor is read through fillWindow; that is
+ * overridden (and getWindow hidden) so that the window is filled with the decoded text rather
+ * than the stored BLOBs. The codec therefore shrinks the database and the windows of queries
+ * within the provider, but not what is sent to clients: a hydrated document too large for a
+ * CursorWindow still can't be sent.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class JsonDecodingCursor extends CrossProcessCursorWrapper {
+    private final int m_jsonColumn;
+    private final ObjectHydrator m_hydrator;
+
+    /* The decoded document of the row at m_decodedPosition */
+    private int m_decodedPosition = -1;
+    private String m_decoded;
+
+    private JsonDecodingCursor(Cursor cursor, int jsonColumn, ObjectHydrator hydrator) {
+        super(cursor);
+        m_jsonColumn = jsonColumn;
+        m_hydrator = hydrator;
+    }
+
+    /** Wrap c if it has a _json column which may need decoding */
+    static Cursor wrap(Cursor c, ObjectHydrator hydrator) {
+        if(c == null || !JsonCodec.isEnabled())
+            return c;
+
+        int column = c.getColumnIndex("_json");
+        if(column < 0)
+            return c;
+
+        return new JsonDecodingCursor(c, column, hydrator);
+    }
+
+    @Override
+    public String getString(int column) {
+        if(column == m_jsonColumn) {
+            int position = getPosition();
+            if(position != m_decodedPosition) {
+                m_decoded = m_hydrator.hydrate(JsonCodec.read(getWrappedCursor(), column));
+                m_decodedPosition = position;
+            }
+            return m_decoded;
+        } else {
+            return super.getString(column);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        if(column == m_jsonColumn) {
+            String json = getString(column);
+            return json != null ? JsonCodec.toUTF8(json) : null;
+        } else {
+            return super.getBlob(column);
+        }
+    }
+
+    @Override
+    public int getType(int column) {
+        int type = super.getType(column);
+        if(column == m_jsonColumn && type == FIELD_TYPE_BLOB) {
+            return FIELD_TYPE_STRING;
+        } else {
+            return type;
+        }
+    }
+
+    @Override
+    public CursorWindow getWindow() {
+        // The wrapped cursor's window holds the encoded data
+        return null;
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        if(position < 0 || position >= getCount())
+            return;
+
+        final int oldPos = getPosition();
+        final int numColumns = getColumnCount();
+        window.clear();
+        window.setStartPosition(position);
+        window.setNumColumns(numColumns);
+
+        if(moveToPosition(position)) {
+            rows: do {
+                if(!window.allocRow())
+                    break;
+
+                for(int i = 0; i < numColumns; i++) {
+                    if(!putField(window, i)) {
+                        // The window is full
+                        window.freeLastRow();
+                        break rows;
+                    }
+                }
+            } while(moveToNext());
+        }
+
+        moveToPosition(oldPos);
+    }
+
+    private boolean putField(CursorWindow window, int column) {
+        final int row = getPosition();
+        switch(getType(column)) {
+            case FIELD_TYPE_NULL:
+                return window.putNull(row, column);
+
+            case FIELD_TYPE_INTEGER:
+                return window.putLong(getLong(column), row, column);
+
+            case FIELD_TYPE_FLOAT:
+                return window.putDouble(getDouble(column), row, column);
+
+            case FIELD_TYPE_BLOB:
+                return window.putBlob(getBlob(column), row, column);
+
+            default:
+                return window.putString(getString(column), row, column);
+        }
+    }
+}
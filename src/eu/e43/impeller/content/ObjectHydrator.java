@@ -0,0 +1,150 @@
+package eu.e43.impeller.content;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+
+import eu.e43.impeller.Utils;
+
+/**
+ * Normalized object storage.
+ *
+ * Every object embedded in a document (an activity's actor, object and target; an object's
+ * author and inReplyTo) is also stored in a row of its own, so the stored document only needs
+ * a stub referencing it. Documents are stripped down to stubs on write, and the embedded
+ * objects reassembled from their rows on read, so clients see the same documents as before
+ * while a changed profile is a single row write.
+ *
+ * Reassembly happens in JsonDecodingCursor, so normalization is only enabled where that is
+ * available. Rows written without it still embed full copies; those are replaced with the
+ * stored versions on read as well.
+ */
+class ObjectHydrator {
+    private static final String TAG = "ObjectHydrator";
+
+    /** Properties which reference objects stored in their own rows */
+    private static final String[] REFERENCE_KEYS = {
+            "actor", "object", "target", "author", "inReplyTo"
+    };
+
+    /** How many levels of embedded objects are reassembled */
+    private static final int MAX_DEPTH  = 3;
+    private static final int CACHE_SIZE = 256;
+
+    private final SQLiteDatabase m_database;
+
+    /* Stored documents of recently read objects, by ID. m_generation is advanced by every
+     * invalidation, so that a reader which raced with a commit doesn't cache what it read */
+    private final LruCache<String, String> m_cache = new LruCache<String, String>(CACHE_SIZE);
+    private int m_generation;
+
+    ObjectHydrator(SQLiteDatabase database) {
+        m_database = database;
+    }
+
+    static boolean isEnabled() {
+        return JsonCodec.isEnabled();
+    }
+
+    /** The document to store for obj: a copy in which each embedded object with an ID in
+     *  stored is replaced by a stub. obj itself is not modified */
+    static JSONObject normalize(JSONObject obj, Set<String> stored) throws JSONException {
+        JSONObject row = null;
+        for(String key : REFERENCE_KEYS) {
+            JSONObject ref = obj.optJSONObject(key);
+            if(ref == null || !stored.contains(ref.optString("id")))
+                continue;
+
+            if(row == null) {
+                row = new JSONObject();
+                for(Iterator<String> i = obj.keys(); i.hasNext();) {
+                    String name = i.next();
+                    row.put(name, obj.get(name));
+                }
+            }
+            row.put(key, Utils.buildStubObject(ref));
+        }
+        return row != null ? row : obj;
+    }
+
+    /** Reassemble the objects embedded in a stored document */
+    String hydrate(String json) {
+        if(json == null)
+            return null;
+
+        try {
+            JSONObject obj = new JSONObject(json);
+            return hydrate(obj, 0) ? obj.toString() : json;
+        } catch(JSONException e) {
+            Log.w(TAG, "Unable to hydrate stored document", e);
+            return json;
+        }
+    }
+
+    /** Forget the cached documents of objects which have been written */
+    synchronized void invalidate(Collection<String> ids) {
+        if(ids.isEmpty())
+            return;
+
+        m_generation++;
+        for(String id : ids)
+            m_cache.remove(id);
+    }
+
+    private boolean hydrate(JSONObject obj, int depth) throws JSONException {
+        if(depth >= MAX_DEPTH)
+            return false;
+
+        boolean changed = false;
+        for(String key : REFERENCE_KEYS) {
+            JSONObject ref = obj.optJSONObject(key);
+            String id = ref != null ? ref.optString("id", null) : null;
+            if(id == null)
+                continue;
+
+            String stored = load(id);
+            if(stored == null)
+                continue;
+
+            JSONObject full = new JSONObject(stored);
+            hydrate(full, depth + 1);
+            obj.put(key, full);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private String load(String id) {
+        int generation;
+        synchronized(this) {
+            String json = m_cache.get(id);
+            if(json != null)
+                return json;
+            generation = m_generation;
+        }
+
+        String json;
+        Cursor c = m_database.rawQuery("SELECT _json FROM objects WHERE id=?", new String[] { id });
+        try {
+            if(!c.moveToFirst())
+                return null;
+            json = JsonCodec.read(c, 0);
+        } finally {
+            c.close();
+        }
+
+        synchronized(this) {
+            if(json != null && generation == m_generation)
+                m_cache.put(id, json);
+        }
+        return json;
+    }
+}
@@ -1,29 +1,38 @@
 package eu.e43.impeller.content;
 
 import android.accounts.Account;
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 
-import eu.e43.impeller.R;
 import eu.e43.impeller.Utils;
 import eu.e43.impeller.account.Authenticator;
 
@@ -36,6 +45,8 @@ public class PumpContentProvider extends ContentProvider {
     public static final String FEED_URL     = "content://eu.e43.impeller.content/feed";
     public static final String ACTIVITY_URL = "content://eu.e43.impeller.content/activity";
     public static final String OBJECT_URL   = "content://eu.e43.impeller.content/object";
+    public static final String SEARCH_URL   = "content://eu.e43.impeller.content/search";
+    public static final String VALIDATOR_URL = "content://eu.e43.impeller.content/validator";
 
     public static final String ACTION_NEW_FEED_ENTRY = "eu.e43.impeller.content.NEW_FEED_ENTRY";
 
@@ -47,8 +58,36 @@ public class PumpContentProvider extends ContentProvider {
             = new HashMap<String, String>();
     private static final Map<String, String> ms_feedProjection
             = new HashMap<String, String>();
+    private static final Map<String, String> ms_searchProjection
+            = new HashMap<String, String>();
+
+    /* Number of operations in a batch between offers to yield the transaction to readers */
+    private static final int BATCH_YIELD_INTERVAL = 50;
+    /* Number of distinct objects a batch may accumulate before it is written out */
+    private static final int BATCH_FLUSH_THRESHOLD = 500;
+    /* Maximum number of IDs looked up per query when flushing */
+    private static final int LOOKUP_CHUNK_SIZE = 100;
+    /* Number of rows re-encoded per transaction by the storage migration */
+    private static final int MIGRATION_CHUNK_SIZE = 200;
+    /* How long the validators of a fetched URL are kept */
+    private static final long VALIDATOR_LIFETIME = 30L * 24 * 60 * 60 * 1000;
 
     private SQLiteDatabase m_database;
+    private ObjectHydrator m_hydrator;
+    private SearchIndex m_searchIndex;
+
+    /* Precompiled write statements. SQLiteStatements are not thread safe: these are only ever
+     * bound and executed inside a transaction, which serializes their users */
+    private SQLiteStatement m_insertObject;
+    private SQLiteStatement m_updateObject;
+    private SQLiteStatement m_insertActivity;
+    private SQLiteStatement m_updateActivity;
+    private SQLiteStatement m_insertFeedEntry;
+    private SQLiteStatement m_changes;
+
+    /* The batch of the calling thread, when inside applyBatch/bulkInsert/beginBatch. Objects
+     * are accumulated in it and change notifications deferred until the batch commits */
+    private final ThreadLocal<IngestBatch> m_batch = new ThreadLocal<IngestBatch>();
 
     /* URIs */
     private static final int OBJECTS    = 1;
@@ -56,11 +95,30 @@ public class PumpContentProvider extends ContentProvider {
     private static final int ACTIVITIES = 3;
     private static final int ACTIVITY   = 4;
     private static final int FEED       = 5;
-
-    private static void addStateProjections(Map<String, String> proj, String idField) {
-        proj.put("replies",     "(SELECT COUNT(*) from objects as _rob WHERE _rob.inReplyTo=" + idField +")");
-        proj.put("likes",       "(SELECT COUNT(*) from activities as _lac WHERE _lac.object=" + idField + " AND _lac.verb IN ('like', 'favorite'))");
-        proj.put("shares",      "(SELECT COUNT(*) from activities as _sac WHERE _sac.object=" + idField + " AND _sac.verb='share')");
+    private static final int SEARCH     = 6;
+    private static final int VALIDATORS = 7;
+
+    /* Verbs which affect the like/share counters of their object */
+    private static final String LIKE_VERBS    = "'like', 'favorite'";
+    private static final String UNLIKE_VERBS  = "'unlike', 'unfavorite'";
+    private static final String SHARE_VERBS   = "'share'";
+    private static final String UNSHARE_VERBS = "'unshare'";
+
+    /** Recomputes the denormalized counters of the objects matched by the trailing WHERE clause */
+    static final String UPDATE_COUNTERS =
+              "UPDATE objects SET "
+            + "replyCount=(SELECT COUNT(*) FROM objects AS _rob WHERE _rob.inReplyTo=objects.id), "
+            + "likeCount=MAX(0, "
+            +     "(SELECT COUNT(*) FROM activities AS _lac WHERE _lac.object=objects.id AND _lac.verb IN (" + LIKE_VERBS + ")) - "
+            +     "(SELECT COUNT(*) FROM activities AS _uac WHERE _uac.object=objects.id AND _uac.verb IN (" + UNLIKE_VERBS + "))), "
+            + "shareCount=MAX(0, "
+            +     "(SELECT COUNT(*) FROM activities AS _sac WHERE _sac.object=objects.id AND _sac.verb IN (" + SHARE_VERBS + ")) - "
+            +     "(SELECT COUNT(*) FROM activities AS _usc WHERE _usc.object=objects.id AND _usc.verb IN (" + UNSHARE_VERBS + "))) ";
+
+    private static void addStateProjections(Map<String, String> proj, String table) {
+        proj.put("replies",     "IFNULL(" + table + ".replyCount, 0)");
+        proj.put("likes",       "IFNULL(" + table + ".likeCount, 0)");
+        proj.put("shares",      "IFNULL(" + table + ".shareCount, 0)");
     }
 
     static {
@@ -69,6 +127,8 @@ public class PumpContentProvider extends ContentProvider {
         ms_uriMatcher.addURI(AUTHORITY, "activity",   ACTIVITIES);
         ms_uriMatcher.addURI(AUTHORITY, "activity/*", ACTIVITY);
         ms_uriMatcher.addURI(AUTHORITY, "feed/*",     FEED);
+        ms_uriMatcher.addURI(AUTHORITY, "search",     SEARCH);
+        ms_uriMatcher.addURI(AUTHORITY, "validator",  VALIDATORS);
 
         ms_objectProjection.put("_ID", "_ID");
         ms_objectProjection.put("id", "id");
@@ -104,69 +164,218 @@ public class PumpContentProvider extends ContentProvider {
         ms_feedProjection.put("objectType",         "object.objectType");
         ms_feedProjection.put("_json",              "activity_object._json");
 
-        addStateProjections(ms_objectProjection, "objects.id");
-        addStateProjections(ms_activityProjection,  "activity.object");
-        addStateProjections(ms_feedProjection,      "activity.object");
+        addStateProjections(ms_objectProjection,    "objects");
+        addStateProjections(ms_activityProjection,  "object");
+        addStateProjections(ms_feedProjection,      "object");
+
+        for(String column : ms_objectProjection.keySet())
+            ms_searchProjection.put(column, "objects." + column);
+        addStateProjections(ms_searchProjection,    "objects");
+        ms_searchProjection.put("rank",             SearchIndex.RANK + " AS rank");
     }
 
     @Override
     public boolean onCreate() {
-        m_database = getContext().openOrCreateDatabase("eu.e43.impeller.content", 0, null);
-        if(m_database == null) return false;
+        m_database = new PumpDatabaseHelper(getContext()).getWritableDatabase();
 
-        m_database.beginTransaction();
-        try {
-            int version = m_database.getVersion();
-            Log.i(TAG, "Database opened - version is " + version);
-            switch(version) {
-                case 0:
-                    Log.i(TAG, "Initializing database");
-                    String sql;
-                    try {
-                        sql = Utils.readAll(getContext().getResources().openRawResource(R.raw.init_content));
+        compileStatements();
+        m_hydrator = new ObjectHydrator(m_database);
+        m_searchIndex = new SearchIndex(m_database);
+
+        Cursor c = m_database.rawQuery("SELECT name, sql FROM sqlite_master WHERE type='table';", null);
+        while(c.moveToNext()) {
+            Log.i(TAG, "Have table " + c.getString(0) + " with SQL " + c.getString(1));
+        }
+        c.close();
 
-                    } catch(IOException e) {
-                        throw new RuntimeException(e);
+        startStorageMigration();
+        return true;
+    }
+
+    /** Brings rows written by older versions up to date in the background: re-encodes their
+     *  documents with JsonCodec and adds them to the search index. This works in small
+     *  transactions, so that readers are not held up for long */
+    private void startStorageMigration() {
+        final SharedPreferences prefs = getContext().getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        final boolean encode = JsonCodec.isEnabled() && !prefs.getBoolean("jsonEncoded", false);
+        final boolean index  = !prefs.getBoolean("searchIndexed", false);
+        if(!encode && !index)
+            return;
+
+        new Thread("StorageMigration") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    if(encode) {
+                        migrateEncoding();
+                        prefs.edit().putBoolean("jsonEncoded", true).apply();
                     }
 
-                    String[] queries = sql.split(";(\\\\s)*[\\n\\r]");
-                    for(int i = 0; i < queries.length; i++) {
-                        m_database.execSQL(queries[i]);
+                    if(index) {
+                        migrateSearchIndex();
+                        prefs.edit().putBoolean("searchIndexed", true).apply();
                     }
+                } catch(RuntimeException e) {
+                    Log.e(TAG, "Storage migration failed; will retry next time", e);
+                }
+            }
+        }.start();
+    }
 
-                    m_database.setVersion(1);
-                case 1:
-                    Log.i(TAG, "Performing database migration to v2");
-                    m_database.execSQL(
-                        "UPDATE activities SET verb=LOWER(verb)");
-                    m_database.setVersion(2);
-
-                case 2:
-                    Log.i(TAG, "Performing database migration to v3");
-                    m_database.execSQL(
-                        "CREATE INDEX ix_activities_related ON activities (object, verb)");
-                    m_database.execSQL(
-                        "CREATE INDEX ix_objects_inReplyTo ON objects (inReplyTo)");
-                    m_database.setVersion(3);
-                case 3:
-                    break;
-                default:
-                    throw new RuntimeException("Unsupported database version");
+    private void migrateEncoding() {
+        File dbFile = new File(m_database.getPath());
+        long sizeBefore = dbFile.length();
+        long start = SystemClock.elapsedRealtime();
+
+        int encoded = 0;
+        long lastRowId = -1;
+        while(lastRowId != 0) {
+            long[] result = encodeStoredJSON(lastRowId, MIGRATION_CHUNK_SIZE);
+            encoded += result[0];
+            lastRowId = result[1];
+        }
+
+        // Release the space freed up by the encoding
+        if(encoded > 0)
+            m_database.execSQL("VACUUM");
+
+        Log.i(TAG, "Encoded " + encoded + " stored documents in "
+                + (SystemClock.elapsedRealtime() - start) + "ms. Database size went from "
+                + sizeBefore + " to " + dbFile.length() + " bytes");
+    }
+
+    private void migrateSearchIndex() {
+        long start = SystemClock.elapsedRealtime();
+
+        int indexed = 0;
+        long lastRowId = -1;
+        while(lastRowId != 0) {
+            long[] result = indexStoredObjects(lastRowId, MIGRATION_CHUNK_SIZE);
+            indexed += result[0];
+            lastRowId = result[1];
+        }
+
+        Log.i(TAG, "Indexed " + indexed + " stored objects in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /** Add up to limit objects with row IDs greater than afterRowId to the search index.
+     *
+     * @return As encodeStoredJSON
+     */
+    private long[] indexStoredObjects(long afterRowId, int limit) {
+        long[] result = new long[] { 0, 0 };
+
+        m_database.beginTransaction();
+        try {
+            Cursor c = m_database.rawQuery(
+                    "SELECT _ID, _json FROM objects WHERE _ID > ? AND objectType<>'activity' "
+                  + "ORDER BY _ID LIMIT " + limit,
+                    new String[] { String.valueOf(afterRowId) });
+            try {
+                while(c.moveToNext()) {
+                    try {
+                        m_searchIndex.update(c.getLong(0), new JSONObject(JsonCodec.read(c, 1)));
+                    } catch(JSONException e) {
+                        Log.w(TAG, "Unable to index object " + c.getLong(0), e);
+                    }
+
+                    result[0]++;
+                    result[1] = c.getLong(0);
+                }
+            } finally {
+                c.close();
             }
 
+            if(result[0] < limit)
+                result[1] = 0;
+
             m_database.setTransactionSuccessful();
+            return result;
+        } finally {
+            m_database.endTransaction();
+        }
+    }
+
+    /** Encode up to limit text documents with row IDs greater than afterRowId.
+     *
+     * @return The number of documents encoded, and the last row ID encoded (0 once there are
+     *         none left)
+     */
+    private long[] encodeStoredJSON(long afterRowId, int limit) {
+        long[] result = new long[] { 0, 0 };
 
-            Cursor c = m_database.rawQuery("SELECT name, sql FROM sqlite_master WHERE type='table';", null);
-            while(c.moveToNext()) {
-                Log.i(TAG, "Have table " + c.getString(0) + " with SQL " + c.getString(1));
+        m_database.beginTransaction();
+        try {
+            SQLiteStatement update = m_database.compileStatement(
+                    "UPDATE objects SET _json=? WHERE _ID=?");
+            Cursor c = m_database.rawQuery(
+                    "SELECT _ID, _json FROM objects WHERE _ID > ? AND typeof(_json)='text' "
+                  + "ORDER BY _ID LIMIT " + limit,
+                    new String[] { String.valueOf(afterRowId) });
+            try {
+                while(c.moveToNext()) {
+                    update.bindBlob(1, JsonCodec.encode(c.getString(1)));
+                    update.bindLong(2, c.getLong(0));
+                    update.execute();
+
+                    result[0]++;
+                    result[1] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+                update.close();
             }
 
-            return true;
+            if(result[0] < limit)
+                result[1] = 0;
+
+            m_database.setTransactionSuccessful();
+            return result;
         } finally {
             m_database.endTransaction();
         }
     }
 
+    private void compileStatements() {
+        m_insertObject = m_database.compileStatement(
+                "INSERT INTO objects (id, objectType, author, published, updated, inReplyTo, _json) "
+              + "VALUES (?, ?, ?, ?, ?, ?, ?)");
+        m_updateObject = m_database.compileStatement(
+                "UPDATE objects SET objectType=?, author=IFNULL(?, author), published=?, "
+              + "updated=?, inReplyTo=IFNULL(?, inReplyTo), _json=? WHERE id=?");
+
+        // Unknown activities are inserted, known ones updated. A row missing its actor is
+        // skipped by the insert, as it violates NOT NULL
+        m_insertActivity = m_database.compileStatement(
+                "INSERT OR IGNORE INTO activities (id, verb, actor, object, target, published) "
+              + "VALUES (?, ?, ?, ?, ?, ?)");
+        m_updateActivity = m_database.compileStatement(
+                "UPDATE activities SET verb=?, actor=IFNULL(?, actor), object=IFNULL(?, object), "
+              + "target=IFNULL(?, target), published=? WHERE id=?");
+
+        // Entries are unique per account: re-adding one (from an overlapping or retried page)
+        // is a no-op, detected through changes()
+        m_insertFeedEntry = m_database.compileStatement(
+                "INSERT OR IGNORE INTO feed_entries (id, published, account) VALUES (?, ?, ?)");
+        m_changes = m_database.compileStatement("SELECT changes()");
+    }
+
+    private static void bindJSON(SQLiteStatement stmt, int index, String json) {
+        if(JsonCodec.isEnabled())
+            stmt.bindBlob(index, JsonCodec.encode(json));
+        else
+            stmt.bindString(index, json);
+    }
+
+    private static void bindStringOrNull(SQLiteStatement stmt, int index, String value) {
+        if(value != null)
+            stmt.bindString(index, value);
+        else
+            stmt.bindNull(index);
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
@@ -185,7 +394,9 @@ public class PumpContentProvider extends ContentProvider {
                       + "LEFT OUTER JOIN objects AS activity_object ON (activity.id=activity_object.id) "
                       + "LEFT OUTER JOIN objects AS object          ON (activity.object=object.id) ");
                 qb.setProjectionMap(ms_activityProjection);
-                return qb.query(m_database, projection, selection, selectionArgs, null, null, sortOrder);
+                return JsonDecodingCursor.wrap(
+                        qb.query(m_database, projection, selection, selectionArgs, null, null, sortOrder),
+                        m_hydrator);
 
             case OBJECT:
                 qb.appendWhere("objects.id=");
@@ -193,7 +404,9 @@ public class PumpContentProvider extends ContentProvider {
             case OBJECTS:
                 qb.setTables("objects");
                 qb.setProjectionMap(ms_objectProjection);
-                return qb.query(m_database, projection, selection, selectionArgs, null, null, sortOrder);
+                return JsonDecodingCursor.wrap(
+                        qb.query(m_database, projection, selection, selectionArgs, null, null, sortOrder),
+                        m_hydrator);
 
             case FEED:
                 qb.setTables(
@@ -205,6 +418,40 @@ public class PumpContentProvider extends ContentProvider {
                 qb.appendWhere("account=");
                 qb.appendWhereEscapeString(uri.getLastPathSegment());
 
+                // Keyset pagination: ?before=<_ID> restricts to older entries, ?limit=<n> to
+                // the first n (in the requested order)
+                String before = uri.getQueryParameter("before");
+                if(before != null)
+                    qb.appendWhere(" AND feed_entries._ID<" + Long.parseLong(before));
+
+                return JsonDecodingCursor.wrap(
+                        qb.query(m_database, projection, selection, selectionArgs, null, null,
+                                sortOrder, getLimit(uri)),
+                        m_hydrator);
+
+            case SEARCH:
+                // ?q=<text>: objects with words starting with each of those of the text, best
+                // matches first
+                String q = uri.getQueryParameter("q");
+                String match = q != null ? SearchIndex.toMatchQuery(q) : null;
+                if(match == null)
+                    throw new IllegalArgumentException("Bad search query");
+
+                qb.setTables(
+                        "objects_fts JOIN objects ON (objects._ID=objects_fts.docid)");
+                qb.setProjectionMap(ms_searchProjection);
+                qb.appendWhere("objects_fts MATCH ");
+                qb.appendWhereEscapeString(match);
+                if(sortOrder == null)
+                    sortOrder = SearchIndex.RANK + " DESC, objects.updated DESC";
+
+                return JsonDecodingCursor.wrap(
+                        qb.query(m_database, projection, selection, selectionArgs, null, null,
+                                sortOrder, getLimit(uri)),
+                        m_hydrator);
+
+            case VALIDATORS:
+                qb.setTables("validators");
                 return qb.query(m_database, projection, selection, selectionArgs, null, null, sortOrder);
 
             default:
@@ -212,6 +459,12 @@ public class PumpContentProvider extends ContentProvider {
         }
     }
 
+    /** The (validated) ?limit=<n> parameter of a query URI, or null */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter("limit");
+        return limit != null ? String.valueOf(Integer.parseInt(limit)) : null;
+    }
+
     @Override
     public String getType(Uri uri) {
         switch(ms_uriMatcher.match(uri)) {
@@ -220,12 +473,17 @@ public class PumpContentProvider extends ContentProvider {
             case OBJECT:        return "vnd.android.cursor.item/vnd.e43.impeller.object";
             case OBJECTS:       return "vnd.android.cursor.dir/vnd.e43.impeller.object";
             case FEED:          return "vnd.android.cursor.dir/vnd.e43.impeller.activity";
+            case SEARCH:        return "vnd.android.cursor.dir/vnd.e43.impeller.object";
+            case VALIDATORS:    return "vnd.android.cursor.dir/vnd.e43.impeller.validator";
             default: return null;
         }
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        if(ms_uriMatcher.match(uri) == VALIDATORS)
+            return insertValidators(uri, contentValues);
+
         if(!contentValues.containsKey("_json"))
             throw new IllegalArgumentException("Must provide JSON version");
 
@@ -236,13 +494,47 @@ public class PumpContentProvider extends ContentProvider {
             Log.e(TAG, "Bad JSON on insert", e);
             throw new IllegalArgumentException("Bad JSON: " + e.getMessage());
         }
+
+        return ingest(uri, obj);
+    }
+
+    /** Replaces the validators of an account's URL, dropping those which haven't been refreshed
+     *  for a while (feed page URLs, for example, are only ever fetched for a short time) */
+    private Uri insertValidators(Uri uri, ContentValues values) {
+        long now = System.currentTimeMillis();
+        values.put("fetched", now);
+
+        m_database.beginTransaction();
+        try {
+            m_database.delete("validators", "fetched<?",
+                    new String[] { String.valueOf(now - VALIDATOR_LIFETIME) });
+            m_database.replace("validators", null, values);
+            m_database.setTransactionSuccessful();
+        } finally {
+            m_database.endTransaction();
+        }
+        return uri;
+    }
+
+    /** Stores an already parsed activity or object, exactly as insert() does with its _json.
+     *
+     * This is the in-process ingest path for the sync code (which runs in our process), so that
+     * downloaded documents don't need to be serialized and parsed again. The object passed in
+     * may be modified.
+     */
+    public Uri ingest(Uri uri, JSONObject obj) {
+        IngestBatch batch = m_batch.get();
+        boolean ownBatch = batch == null;
+        if(ownBatch)
+            batch = new IngestBatch();
+
         try {
             m_database.beginTransaction();
             Uri path;
             int match = ms_uriMatcher.match(uri);
             switch(match) {
                 case FEED:
-                    insertFeedEntry(obj, uri.getLastPathSegment());
+                    insertFeedEntry(batch, obj, uri.getLastPathSegment());
 
                     // FALLTHROUGH
                 case ACTIVITIES:
@@ -251,22 +543,12 @@ public class PumpContentProvider extends ContentProvider {
                             throw new IllegalArgumentException("Attempt to pass non-activity");
                     }
 
-                    String id = ensureActivity(obj);
-
-                    m_database.setTransactionSuccessful();
-                    path = new Uri.Builder()
-                            .scheme("content")
-                            .authority(AUTHORITY)
-                            .appendPath("activity")
-                            .appendPath(id)
-                            .build();
-
+                    String id = addActivity(batch, obj);
+                    path = getActivityUri(id);
                     break;
 
                 case OBJECTS:
-                    id = ensureObject(obj);
-
-                    m_database.setTransactionSuccessful();
+                    id = addObject(batch, obj);
                     path = new Uri.Builder()
                             .scheme("content")
                             .authority(AUTHORITY)
@@ -279,35 +561,182 @@ public class PumpContentProvider extends ContentProvider {
                 default: throw new IllegalArgumentException("Bad URI");
             }
 
-            ContentResolver res = getContext().getContentResolver();
-            res.notifyChange(path, null);
-            res.notifyChange(uri, null);
-            res.notifyChange(Uri.parse(ACTIVITY_URL), null);
-            res.notifyChange(Uri.parse(OBJECT_URL), null);
-            res.notifyChange(Uri.parse(FEED_URL), null);
+            if(ownBatch || batch.size() >= BATCH_FLUSH_THRESHOLD)
+                flushBatch(batch);
+            m_database.setTransactionSuccessful();
+
+            if(ownBatch) {
+                ContentResolver res = getContext().getContentResolver();
+                res.notifyChange(path, null);
+                res.notifyChange(uri, null);
+                res.notifyChange(Uri.parse(ACTIVITY_URL), null);
+                res.notifyChange(Uri.parse(OBJECT_URL), null);
+                res.notifyChange(Uri.parse(FEED_URL), null);
+            }
             return path;
         } finally {
             m_database.endTransaction();
+            if(ownBatch)
+                m_hydrator.invalidate(batch.written);
         }
     }
 
-    private void insertFeedEntry(JSONObject obj, String account) {
+    /** Adds an (already ingested) activity to an account's feed. In-process only, like ingest()
+     *
+     * @return The URI of the activity, or null if it was already in the feed
+     */
+    public Uri ingestFeedEntry(String account, String id, long published) {
+        IngestBatch batch = m_batch.get();
+        boolean inserted;
+        m_database.beginTransaction();
+        try {
+            inserted = insertFeedEntry(batch != null ? batch : new IngestBatch(),
+                    account, id, published);
+            m_database.setTransactionSuccessful();
+        } finally {
+            m_database.endTransaction();
+        }
+
+        if(!inserted)
+            return null;
+
+        if(batch == null)
+            getContext().getContentResolver().notifyChange(Uri.parse(FEED_URL), null);
+        return getActivityUri(id);
+    }
+
+    /** Begins a batch on the calling thread: everything up to the matching endBatch is
+     *  performed in one transaction, and change notifications are held back until it commits.
+     *  Used by applyBatch and bulkInsert, and by in-process callers of ingest()
+     */
+    public void beginBatch() {
+        m_batch.set(new IngestBatch());
+        m_database.beginTransaction();
+    }
+
+    /** The calling thread's current batch, or null. For tests, which read its statistics */
+    IngestBatch getBatch() {
+        return m_batch.get();
+    }
+
+    /** Offers to temporarily commit the current batch so that waiting readers can run */
+    public void yieldBatch() {
+        flushBatch(m_batch.get());
+        m_database.yieldIfContendedSafely();
+    }
+
+    /** Ends the current batch, committing it if successful */
+    public void endBatch(boolean successful) {
+        IngestBatch batch = m_batch.get();
+        try {
+            if(successful) {
+                flushBatch(batch);
+                m_database.setTransactionSuccessful();
+            }
+        } finally {
+            m_database.endTransaction();
+            m_batch.remove();
+
+            // Yielding may have committed part of the batch even if the rest was rolled back
+            m_hydrator.invalidate(batch.written);
+        }
+
+        if(successful) {
+            Log.i(TAG, "Committed batch: " + batch);
+            notifyBatchCommitted();
+        }
+    }
+
+    /** Applies the whole batch inside one transaction, yielding to readers every
+     *  BATCH_YIELD_INTERVAL operations, and sends a single change notification once it
+     *  has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = SystemClock.elapsedRealtime();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+
+        boolean successful = false;
+        beginBatch();
+        try {
+            for(int i = 0; i < results.length; i++) {
+                if(i > 0 && i % BATCH_YIELD_INTERVAL == 0)
+                    yieldBatch();
+
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            successful = true;
+        } finally {
+            endBatch(successful);
+        }
+
+        Log.i(TAG, "Applied batch of " + results.length + " operations in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return results;
+    }
+
+    /** As applyBatch, for a homogeneous set of inserts */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = SystemClock.elapsedRealtime();
+
+        boolean successful = false;
+        beginBatch();
+        try {
+            for(int i = 0; i < values.length; i++) {
+                if(i > 0 && i % BATCH_YIELD_INTERVAL == 0)
+                    yieldBatch();
+
+                insert(uri, values[i]);
+            }
+            successful = true;
+        } finally {
+            endBatch(successful);
+        }
+
+        Log.i(TAG, "Bulk inserted " + values.length + " rows in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return values.length;
+    }
+
+    /** A batch may touch any of our URIs; notifying the root reaches every observer */
+    private void notifyBatchCommitted() {
+        getContext().getContentResolver().notifyChange(Uri.parse(URL), null);
+    }
+
+    private static Uri getActivityUri(String id) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath("activity")
+                .appendPath(id)
+                .build();
+    }
+
+    private void insertFeedEntry(IngestBatch batch, JSONObject obj, String account) {
         try {
             String id           = obj.getString("id");
             long published      = Utils.parseDate(obj.optString("published"));
 
-            ContentValues vals = new ContentValues();
-            vals.put("id",          id);
-            vals.put("published",   published);
-            vals.put("account",     account);
-
-            m_database.insertOrThrow("feed_entries", null, vals);
+            insertFeedEntry(batch, account, id, published);
         } catch(JSONException e) {
             Log.e(TAG, "Bad activity", e);
             throw new IllegalArgumentException("Bad activity");
         }
     }
 
+    /** Add a feed entry if there is none: an INSERT OR IGNORE, and a query of whether it
+     *  inserted. @return Whether the entry was new */
+    private boolean insertFeedEntry(IngestBatch batch, String account, String id, long published) {
+        m_insertFeedEntry.bindString(1, id);
+        m_insertFeedEntry.bindLong  (2, published);
+        m_insertFeedEntry.bindString(3, account);
+        m_insertFeedEntry.executeInsert();
+        batch.statements += 2;
+        return m_changes.simpleQueryForLong() > 0;
+    }
+
     private JSONObject mergeJSON(JSONObject oldObj, JSONObject newObj) throws JSONException {
         for(Iterator<String> i = newObj.keys(); i.hasNext();) {
             String key = i.next();
@@ -328,46 +757,86 @@ public class PumpContentProvider extends ContentProvider {
         return oldObj;
     }
 
-    private JSONObject mergeEntry(JSONObject newObj) {
-        Cursor c = m_database.query(
-                "objects",
-                new String[] { "_json" },
-                "id=?",
-                new String[] { newObj.optString("id") },
-                null, null, null, null);
+    /** Write an object row and reindex it. Whether it already exists is known from the lookup
+     *  done for merging, so the row is always a single statement */
+    private void writeObject(IngestBatch batch, JSONObject obj, String id, String objectType,
+                             String author, long published, long updated, String inReplyTo,
+                             String json, boolean exists) {
+        if(exists) {
+            m_updateObject.bindString     (1, objectType);
+            bindStringOrNull(m_updateObject, 2, author);
+            m_updateObject.bindLong       (3, published);
+            m_updateObject.bindLong       (4, updated);
+            bindStringOrNull(m_updateObject, 5, inReplyTo);
+            bindJSON(m_updateObject, 6, json);
+            m_updateObject.bindString     (7, id);
+            m_updateObject.execute();
+        } else {
+            m_insertObject.bindString     (1, id);
+            m_insertObject.bindString     (2, objectType);
+            bindStringOrNull(m_insertObject, 3, author);
+            m_insertObject.bindLong       (4, published);
+            m_insertObject.bindLong       (5, updated);
+            bindStringOrNull(m_insertObject, 6, inReplyTo);
+            bindJSON(m_insertObject, 7, json);
+            m_insertObject.executeInsert();
+        }
+        batch.statements++;
+        batch.statements += m_searchIndex.update(id, obj, exists);
+    }
 
-        try {
-            if(c.moveToFirst()) {
-                JSONObject oldObj = new JSONObject(c.getString(0));
+    /** Write an activity row: an INSERT OR IGNORE followed by an UPDATE */
+    private void writeActivity(IngestBatch batch, String id, String verb, String actor,
+                               String object, String target, long published) {
+        insertActivity(batch, id, verb, actor, object, target, published);
+
+        m_updateActivity.bindString     (1, verb);
+        bindStringOrNull(m_updateActivity, 2, actor);
+        bindStringOrNull(m_updateActivity, 3, object);
+        bindStringOrNull(m_updateActivity, 4, target);
+        m_updateActivity.bindLong       (5, published);
+        m_updateActivity.bindString     (6, id);
+        m_updateActivity.execute();
+        batch.statements++;
+    }
 
-                return mergeJSON(oldObj, newObj);
-            } else {
-                return newObj;
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Database parse error", e);
-            return newObj;
-        } finally {
-            c.close();
-        }
+    /** Create an activity row if there is none: an INSERT OR IGNORE, and a query of whether it
+     *  inserted. @return Whether one was created */
+    private boolean insertActivity(IngestBatch batch, String id, String verb, String actor,
+                                   String object, String target, long published) {
+        m_insertActivity.bindString     (1, id);
+        m_insertActivity.bindString     (2, verb);
+        bindStringOrNull(m_insertActivity, 3, actor);
+        bindStringOrNull(m_insertActivity, 4, object);
+        bindStringOrNull(m_insertActivity, 5, target);
+        m_insertActivity.bindLong       (6, published);
+        m_insertActivity.executeInsert();
+        batch.statements += 2;
+        return m_changes.simpleQueryForLong() > 0;
     }
 
-    private void ensureEntry(String table, ContentValues vals) {
-        try {
-            m_database.insertOrThrow(table, null, vals);
-        } catch(SQLiteConstraintException ex) {
-            // Already exists
-            m_database.update(table, vals, "id=?", new String[] { vals.getAsString("id") });
-        }
+    private static boolean isCountedVerb(String verb) {
+        return "like".equals(verb)  || "favorite".equals(verb)
+            || "unlike".equals(verb) || "unfavorite".equals(verb)
+            || "share".equals(verb) || "unshare".equals(verb);
     }
 
-    private String ensureActivity(JSONObject act) {
-        try {
-            act = mergeEntry(act);
+    /** Refresh the reply/like/share counters of the specified object */
+    private void updateCounters(IngestBatch batch, String id) {
+        m_database.execSQL(UPDATE_COUNTERS + "WHERE id=?", new Object[] { id });
+        batch.statements++;
+    }
 
-            String id           = act.getString("id");
-            String verb         = act.optString("verb", "post");
-            long published      = Utils.parseDate(act.optString("published"));
+    /** ID of the object embedded in obj under key, or null */
+    private static String getReferenceId(JSONObject obj, String key) {
+        JSONObject ref = obj.optJSONObject(key);
+        return ref != null ? ref.optString("id", null) : null;
+    }
+
+    /** Add an activity, and the objects it embeds, to the batch */
+    private String addActivity(IngestBatch batch, JSONObject act) {
+        try {
+            String id = act.getString("id");
 
             JSONObject obj = act.optJSONObject("object");
             if(obj != null) {
@@ -375,25 +844,16 @@ public class PumpContentProvider extends ContentProvider {
                     obj.put("author", act.optJSONObject("actor"));
             }
 
-            String actor        = ensureObject(act.optJSONObject("actor"));
-            String object       = ensureObject(obj);
-            String target       = ensureObject(act.optJSONObject("target"));
-
-            ContentValues vals = new ContentValues();
-            vals.put("id",          id);
-            vals.put("verb",        verb.toLowerCase());
-            vals.put("published",   published);
-            if(actor  != null) vals.put("actor",       actor);
-            if(object != null) vals.put("object",      object);
-            if(target != null) vals.put("target",      target);
-
-            ensureEntry("activities", vals);
+            addObject(batch, act.optJSONObject("actor"));
+            addObject(batch, obj);
+            addObject(batch, act.optJSONObject("target"));
 
             act.put("objectType", "activity");
             if(!act.has("author"))
                 act.put("author", act.opt("actor"));
-            ensureObject(act);
+            addObject(batch, act);
 
+            batch.activities.add(id);
             return id;
         } catch(JSONException e) {
             Log.e(TAG, "Bad activity", e);
@@ -401,14 +861,16 @@ public class PumpContentProvider extends ContentProvider {
         }
     }
 
-    /** Ensure the object is in the database */
-    private String ensureObject(JSONObject obj) {
+    /** Add an object, and the objects it embeds, to the batch. An object which is already in
+     *  the batch is merged with the version there */
+    private String addObject(IngestBatch batch, JSONObject obj) {
         if(obj == null)
             return null;
 
         try {
-            String author       = ensureObject(obj.optJSONObject("author"));
-            String inReplyTo    = ensureObject(obj.optJSONObject("inReplyTo"));
+            batch.nodes++;
+            addObject(batch, obj.optJSONObject("author"));
+            addObject(batch, obj.optJSONObject("inReplyTo"));
 
             if(obj.has("replies")) {
                 JSONObject replies = obj.getJSONObject("replies");
@@ -419,35 +881,145 @@ public class PumpContentProvider extends ContentProvider {
                     for(int i = 0; i < items.length(); i++) {
                         JSONObject reply = items.getJSONObject(i);
                         reply.put("inReplyTo", obj);
-                        ensureObject(reply);
+                        addObject(batch, reply);
                     }
                 }
             }
 
-            obj = mergeEntry(obj);
+            String id = obj.getString("id");
+            JSONObject existing = batch.objects.get(id);
+            if(existing == null) {
+                batch.objects.put(id, obj);
+            } else if(existing != obj) {
+                mergeJSON(existing, obj);
+            }
+
+            return id;
+        } catch(JSONException e) {
+            Log.e(TAG, "Bad object", e);
+            throw new IllegalArgumentException("Bad object");
+        }
+    }
+
+    /** Look up the stored JSON of every object in the batch */
+    private Map<String, String> loadStoredJSON(IngestBatch batch) {
+        Map<String, String> stored = new HashMap<String, String>();
+        ArrayList<String> ids = new ArrayList<String>(batch.objects.keySet());
+
+        for(int first = 0; first < ids.size(); first += LOOKUP_CHUNK_SIZE) {
+            int count = Math.min(LOOKUP_CHUNK_SIZE, ids.size() - first);
+            String[] args = ids.subList(first, first + count).toArray(new String[count]);
+
+            StringBuilder sql = new StringBuilder("SELECT id, _json FROM objects WHERE id IN (?");
+            for(int i = 1; i < count; i++)
+                sql.append(",?");
+            sql.append(")");
+
+            Cursor c = m_database.rawQuery(sql.toString(), args);
+            batch.statements++;
+            try {
+                while(c.moveToNext()) {
+                    stored.put(c.getString(0), JsonCodec.read(c, 1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        return stored;
+    }
+
+    /** Write out the batch: each object is merged with its stored version and written once */
+    private void flushBatch(IngestBatch batch) {
+        if(batch == null || batch.isEmpty())
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+        Map<String, String> stored = loadStoredJSON(batch);
+        HashSet<String> counted = new HashSet<String>();
+        HashSet<String> unchanged = new HashSet<String>();
+        batch.written.addAll(batch.objects.keySet());
+
+        for(Map.Entry<String, JSONObject> entry : batch.objects.entrySet()) {
+            String id       = entry.getKey();
+            JSONObject obj  = entry.getValue();
+
+            String oldJSON = stored.get(id);
+            if(oldJSON != null) {
+                try {
+                    obj = mergeJSON(new JSONObject(oldJSON), obj);
+                    entry.setValue(obj);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Database parse error", e);
+                }
+            }
 
-            String id           = obj.getString("id");
-            String objectType   = obj.optString("objectType", "note");
             String publishedStr = obj.optString("published");
             long published      = Utils.parseDate(publishedStr);
             long updated        = Utils.parseDate(obj.optString("updated", publishedStr));
+            String author       = getReferenceId(obj, "author");
+            String inReplyTo    = getReferenceId(obj, "inReplyTo");
+
+            String json;
+            try {
+                // Embedded objects are written to their own rows, so the row needs only stubs
+                json = ObjectHydrator.isEnabled()
+                        ? ObjectHydrator.normalize(obj, batch.written).toString()
+                        : obj.toString();
+            } catch(JSONException e) {
+                Log.e(TAG, "Bad object", e);
+                throw new IllegalArgumentException("Bad object");
+            }
 
-            ContentValues vals = new ContentValues();
-            vals.put("_json",       obj.toString());
-            vals.put("id",          id);
-            vals.put("objectType",  objectType);
-            vals.put("published",   published);
-            vals.put("updated",     updated);
-            if(author    != null) vals.put("author",      author);
-            if(inReplyTo != null) vals.put("inReplyTo",   inReplyTo);
+            // Re-ingesting an object (say, from an overlapping page) usually changes nothing
+            if(json.equals(oldJSON)) {
+                unchanged.add(id);
+                batch.rowsUnchanged++;
+                continue;
+            }
 
-            ensureEntry("objects", vals);
+            writeObject(batch, obj, id, obj.optString("objectType", "note"), author, published,
+                    updated, inReplyTo, json, oldJSON != null);
+            batch.rowsWritten++;
 
-            return id;
-        } catch(JSONException e) {
-            Log.e(TAG, "Bad object", e);
-            throw new IllegalArgumentException("Bad object");
+            if(inReplyTo != null)
+                counted.add(inReplyTo);
         }
+
+        for(String id : batch.activities) {
+            JSONObject act      = batch.objects.get(id);
+            String verb         = act.optString("verb", "post").toLowerCase();
+            long published      = Utils.parseDate(act.optString("published"));
+            String actor        = getReferenceId(act, "actor");
+            String object       = getReferenceId(act, "object");
+            String target       = getReferenceId(act, "target");
+
+            if(unchanged.contains(id)) {
+                // The activity's row is derived from the same document as its object row, so
+                // is up to date if it exists. It may not: the document may have been stored
+                // before as a plain object (embedded or shared), or by a batch which failed
+                if(!insertActivity(batch, id, verb, actor, object, target, published))
+                    continue;
+            } else {
+                writeActivity(batch, id, verb, actor, object, target, published);
+            }
+
+            if(object != null && isCountedVerb(verb))
+                counted.add(object);
+        }
+
+        for(String id : counted)
+            updateCounters(batch, id);
+
+        batch.clear();
+        batch.flushMillis += SystemClock.elapsedRealtime() - start;
+    }
+
+    /** Close the database. Only tests shut providers down */
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void shutdown() {
+        m_database.close();
     }
 
     @Override
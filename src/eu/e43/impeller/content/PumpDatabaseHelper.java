@@ -0,0 +1,189 @@
+package eu.e43.impeller.content;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+
+import eu.e43.impeller.R;
+import eu.e43.impeller.Utils;
+
+/**
+ * Opens, migrates and tunes the content database.
+ *
+ * Where available the database is put in write-ahead logging mode. Readers (the UI's loaders,
+ * through the provider) then use their own pooled connections and see the last committed
+ * state, rather than waiting for a sync batch's write transaction to finish.
+ */
+class PumpDatabaseHelper extends SQLiteOpenHelper {
+    private static final String TAG = "PumpDatabaseHelper";
+
+    static final String         NAME    = "eu.e43.impeller.content";
+    private static final int    VERSION = 9;
+
+    /* Storage profile. The page size only applies to newly created databases. The cache size
+     * is a per-connection setting, and SQLiteOpenHelper only lets us configure the primary
+     * connection: so it sizes the cache of the writer, whose batches look up every object
+     * they merge. Pooled read connections keep SQLite's default. For the same reason, no
+     * mmap_size is set: it would only reach the writer, not the readers it was meant for */
+    private static final int  PAGE_SIZE          = 4096;
+    private static final int  WRITER_CACHE_PAGES = 512;
+
+    private final Context m_context;
+
+    PumpDatabaseHelper(Context context) {
+        super(context, NAME, null, VERSION);
+        m_context = context;
+    }
+
+    /** Whether the database is in write-ahead logging mode */
+    static boolean isWriteAheadLogging(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA journal_mode", null);
+        try {
+            return c.moveToFirst() && "wal".equalsIgnoreCase(c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase db) {
+        // Must precede anything which writes to a new database, WAL mode included
+        db.execSQL("PRAGMA page_size=" + PAGE_SIZE);
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging(db);
+        }
+
+        db.execSQL("PRAGMA cache_size=" + WRITER_CACHE_PAGES);
+
+        Cursor c = db.rawQuery("PRAGMA page_size", null);
+        try {
+            c.moveToFirst();
+            Log.i(TAG, "Opened database version " + db.getVersion() + ": page size "
+                    + c.getInt(0) + ", write-ahead logging " + isWriteAheadLogging(db));
+        } finally {
+            c.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void enableWriteAheadLogging(SQLiteDatabase db) {
+        if(!db.enableWriteAheadLogging())
+            Log.w(TAG, "Unable to enable write-ahead logging");
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        migrate(db, 0);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion);
+    }
+
+    /** Bring the schema up to date. Called inside a transaction, which SQLiteOpenHelper
+     *  commits along with the new version number */
+    private void migrate(SQLiteDatabase db, int version) {
+        switch(version) {
+            case 0:
+                Log.i(TAG, "Initializing database");
+                String sql;
+                try {
+                    sql = Utils.readAll(m_context.getResources().openRawResource(R.raw.init_content));
+
+                } catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+
+                String[] queries = sql.split(";(\\\\s)*[\\n\\r]");
+                for(int i = 0; i < queries.length; i++) {
+                    db.execSQL(queries[i]);
+                }
+
+            case 1:
+                Log.i(TAG, "Performing database migration to v2");
+                db.execSQL(
+                    "UPDATE activities SET verb=LOWER(verb)");
+
+            case 2:
+                Log.i(TAG, "Performing database migration to v3");
+                db.execSQL(
+                    "CREATE INDEX ix_activities_related ON activities (object, verb)");
+                db.execSQL(
+                    "CREATE INDEX ix_objects_inReplyTo ON objects (inReplyTo)");
+
+            case 3:
+                Log.i(TAG, "Performing database migration to v4");
+                db.execSQL(
+                    "ALTER TABLE objects ADD COLUMN replyCount INTEGER NOT NULL DEFAULT 0");
+                db.execSQL(
+                    "ALTER TABLE objects ADD COLUMN likeCount  INTEGER NOT NULL DEFAULT 0");
+                db.execSQL(
+                    "ALTER TABLE objects ADD COLUMN shareCount INTEGER NOT NULL DEFAULT 0");
+                db.execSQL(PumpContentProvider.UPDATE_COUNTERS);
+
+            case 4:
+                Log.i(TAG, "Performing database migration to v5");
+                // Keyset pagination of an account's feed
+                db.execSQL(
+                    "CREATE INDEX ix_feed_entries_keyset ON feed_entries (account, _ID)");
+
+            case 5:
+                Log.i(TAG, "Performing database migration to v6");
+                // Full text index of objects; filled in by PumpContentProvider, in the
+                // background for existing rows
+                db.execSQL(
+                    "CREATE VIRTUAL TABLE objects_fts USING fts3 "
+                  + "(content, displayName, summary, preferredUsername)");
+
+            case 6:
+                Log.i(TAG, "Performing database migration to v7");
+                // An activity appears in an account's feed at most once; keep the first copy
+                db.execSQL(
+                    "DELETE FROM feed_entries WHERE _ID NOT IN "
+                  + "(SELECT MIN(_ID) FROM feed_entries GROUP BY account, id)");
+                db.execSQL(
+                    "CREATE UNIQUE INDEX ix_feed_entries_unique ON feed_entries (account, id)");
+
+            case 7:
+                Log.i(TAG, "Performing database migration to v8");
+                // Validators for conditional GETs of the documents we've fetched
+                db.execSQL(
+                    "CREATE TABLE validators ("
+                  + "url TEXT PRIMARY KEY, etag TEXT, lastModified TEXT, "
+                  + "length INTEGER NOT NULL DEFAULT 0, writes INTEGER NOT NULL DEFAULT 0, "
+                  + "fetched INTEGER NOT NULL)");
+
+            case 8:
+                Log.i(TAG, "Performing database migration to v9");
+                // Validators are per account, as accounts on the same host see different
+                // documents; the old ones are just a cache, so start afresh
+                db.execSQL(
+                    "DROP TABLE validators");
+                db.execSQL(
+                    "CREATE TABLE validators ("
+                  + "account TEXT NOT NULL, url TEXT NOT NULL, etag TEXT, lastModified TEXT, "
+                  + "length INTEGER NOT NULL DEFAULT 0, writes INTEGER NOT NULL DEFAULT 0, "
+                  + "fetched INTEGER NOT NULL, PRIMARY KEY (account, url))");
+
+            case 9:
+                break;
+
+            default:
+                throw new RuntimeException("Unsupported database version");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package eu.e43.impeller.content;
+
+import android.app.Activity;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import eu.e43.impeller.Metrics;
+
+/**
+ * Merges identical content refreshes.
+ *
+ * Refreshes are keyed by (account, action, URI). While one is running, further requests for
+ * it wait for its result rather than fetching and writing the same document again; and for a
+ * while after one has succeeded, requests are answered with its result straight away.
+ */
+class RefreshCoalescer {
+    /** How long a successful refresh is considered current */
+    static final long FRESHNESS_WINDOW = 60 * 1000;
+
+    private static final int MAX_RECENT = 128;
+
+    /* Outcomes of join() */
+    static final int RUN      = 0;
+    static final int JOINED   = 1;
+    static final int ANSWERED = 2;
+
+    interface Waiter {
+        public void onResult(ContentUpdateReceiver.ResultData data);
+    }
+
+    private final HashMap<String, ArrayList<Waiter>> m_inFlight
+            = new HashMap<String, ArrayList<Waiter>>();
+    private final LruCache<String, ContentUpdateReceiver.ResultData> m_recent
+            = new LruCache<String, ContentUpdateReceiver.ResultData>(MAX_RECENT);
+
+    static String key(String account, String action, String uri) {
+        return account + " " + action + " " + uri;
+    }
+
+    /** Ask for the refresh identified by key.
+     *
+     * @return RUN if the caller must now perform it, then call complete(); JOINED if waiter
+     *         will be answered when the refresh already in flight completes; or ANSWERED if
+     *         it has been answered with a recent result
+     */
+    int join(String key, Waiter waiter) {
+        ContentUpdateReceiver.ResultData recent;
+        synchronized(this) {
+            recent = m_recent.get(key);
+            if(recent != null && SystemClock.elapsedRealtime() - recent.completed > FRESHNESS_WINDOW) {
+                m_recent.remove(key);
+                recent = null;
+            }
+
+            if(recent == null) {
+                ArrayList<Waiter> waiters = m_inFlight.get(key);
+                if(waiters != null) {
+                    waiters.add(waiter);
+                    Metrics.increment("refresh.coalesced");
+                    return JOINED;
+                }
+
+                waiters = new ArrayList<Waiter>();
+                waiters.add(waiter);
+                m_inFlight.put(key, waiters);
+                Metrics.increment("refresh.runs");
+                return RUN;
+            }
+        }
+
+        Metrics.increment("refresh.fresh");
+        waiter.onResult(recent);
+        return ANSWERED;
+    }
+
+    /** Deliver the result of a refresh begun by join() to everything waiting for it */
+    void complete(String key, ContentUpdateReceiver.ResultData data) {
+        ArrayList<Waiter> waiters;
+        synchronized(this) {
+            waiters = m_inFlight.remove(key);
+            if(data.code == Activity.RESULT_OK) {
+                data.completed = SystemClock.elapsedRealtime();
+                m_recent.put(key, data);
+            }
+        }
+
+        if(waiters != null) {
+            for(Waiter w : waiters)
+                w.onResult(data);
+        }
+    }
+}
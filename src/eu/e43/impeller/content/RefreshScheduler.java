@@ -0,0 +1,140 @@
+package eu.e43.impeller.content;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.e43.impeller.Metrics;
+
+/**
+ * Runs content refreshes on a small pool of background threads, most important first.
+ *
+ * Within a priority the most recently requested refresh runs first, as the user has most
+ * likely moved on from the views which asked for the older ones. A refresh which is still
+ * queued is dropped once everyone who asked for it has cancelled.
+ */
+class RefreshScheduler {
+    private static final String TAG = "RefreshScheduler";
+
+    /* Priorities, most important first */
+    static final int PRIORITY_OBJECT    = 0;
+    static final int PRIORITY_REPLIES   = 1;
+    static final int PRIORITY_USER_FEED = 2;
+
+    private static final int  THREADS   = 3;
+    private static final long KEEP_ALIVE = 30;
+
+    /** A refresh. run() is only called if it wasn't cancelled first */
+    abstract static class Task implements Runnable, Comparable<Task> {
+        final String key;
+        final int    priority;
+
+        private long m_sequence;
+        private long m_queued;
+        private final HashSet<String> m_requesters = new HashSet<String>();
+
+        /** @param requester Token identifying the request, or null if it can't be cancelled */
+        Task(String key, int priority, String requester) {
+            this.key      = key;
+            this.priority = priority;
+            m_requesters.add(requester);
+        }
+
+        /** Called instead of run() if the task was cancelled while queued */
+        abstract void onCancelled();
+
+        @Override
+        public int compareTo(Task other) {
+            if(priority != other.priority)
+                return priority < other.priority ? -1 : 1;
+            return m_sequence > other.m_sequence ? -1 : (m_sequence < other.m_sequence ? 1 : 0);
+        }
+    }
+
+    private final AtomicLong            m_sequence = new AtomicLong();
+    private final HashMap<String, Task> m_queued   = new HashMap<String, Task>();
+    private final ThreadPoolExecutor    m_executor;
+
+    RefreshScheduler() {
+        m_executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int m_count = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Refresh #" + (++m_count));
+            }
+        }) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                dequeued((Task) r);
+            }
+        };
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            allowTimeOut(m_executor);
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void allowTimeOut(ThreadPoolExecutor executor) {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    void submit(Task task) {
+        synchronized(this) {
+            task.m_sequence = m_sequence.incrementAndGet();
+            task.m_queued   = SystemClock.elapsedRealtime();
+            m_queued.put(task.key, task);
+            Metrics.max("refresh.maxQueued", m_queued.size());
+        }
+        Metrics.increment("refresh.submitted");
+        m_executor.execute(task);
+    }
+
+    /** Another request for the refresh identified by key, if it is still queued */
+    synchronized void retain(String key, String requester) {
+        Task task = m_queued.get(key);
+        if(task != null)
+            task.m_requesters.add(requester);
+    }
+
+    /** Withdraw a request for the refresh identified by key. Once every request has been
+     *  withdrawn, it is dropped if it hasn't started yet */
+    void cancel(String key, String requester) {
+        Task task;
+        synchronized(this) {
+            task = m_queued.get(key);
+            if(task == null || !task.m_requesters.remove(requester) || !task.m_requesters.isEmpty())
+                return;
+            m_queued.remove(key);
+        }
+
+        if(m_executor.remove(task)) {
+            Log.v(TAG, "Cancelled " + key);
+            Metrics.increment("refresh.cancelled");
+            task.onCancelled();
+        }
+    }
+
+    private synchronized void dequeued(Task task) {
+        if(m_queued.get(task.key) == task)
+            m_queued.remove(task.key);
+        Metrics.add("refresh.waitMs", SystemClock.elapsedRealtime() - task.m_queued);
+    }
+}
@@ -0,0 +1,123 @@
+package eu.e43.impeller.content;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONObject;
+
+import java.util.regex.Pattern;
+
+/**
+ * Maintains objects_fts, the full text index over the text of stored objects.
+ *
+ * The index is an FTS3 table (FTS4 needs API 11) whose docids are the _IDs of the objects
+ * rows. It is kept up to date as objects are written; activities are not indexed, as their
+ * text only describes other objects.
+ */
+class SearchIndex {
+    /** Indexed properties, in objects_fts column order */
+    static final String[] COLUMNS = { "content", "displayName", "summary", "preferredUsername" };
+
+    /** Number of matches of the query in the row; for use with a MATCH on objects_fts */
+    static final String RANK =
+            "(LENGTH(offsets(objects_fts)) - LENGTH(REPLACE(offsets(objects_fts), ' ', '')) + 1) / 4";
+
+    private static final Pattern TAGS        = Pattern.compile("<[^>]*>");
+    private static final Pattern NON_WORD    = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /* Compiled on, and only used inside transactions of, the provider's connection */
+    private final SQLiteStatement m_deleteById;
+    private final SQLiteStatement m_insertById;
+    private final SQLiteStatement m_deleteByRowId;
+    private final SQLiteStatement m_insertByRowId;
+
+    SearchIndex(SQLiteDatabase db) {
+        m_deleteById = db.compileStatement(
+                "DELETE FROM objects_fts WHERE docid=(SELECT _ID FROM objects WHERE id=?)");
+        m_insertById = db.compileStatement(
+                "INSERT INTO objects_fts (docid, content, displayName, summary, preferredUsername) "
+              + "SELECT _ID, ?, ?, ?, ? FROM objects WHERE id=?");
+        m_deleteByRowId = db.compileStatement(
+                "DELETE FROM objects_fts WHERE docid=?");
+        m_insertByRowId = db.compileStatement(
+                "INSERT INTO objects_fts (docid, content, displayName, summary, preferredUsername) "
+              + "VALUES (?, ?, ?, ?, ?)");
+    }
+
+    /** Turn text typed by the user into an FTS query matching rows which contain words
+     *  starting with each of its words, or null if it has none */
+    static String toMatchQuery(String text) {
+        StringBuilder query = new StringBuilder();
+        for(String word : NON_WORD.split(text)) {
+            if(word.length() == 0)
+                continue;
+
+            if(query.length() > 0)
+                query.append(' ');
+            query.append(word).append('*');
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    /** The indexed text of obj, by column, or null if it has none */
+    private static String[] extract(JSONObject obj) {
+        if("activity".equals(obj.optString("objectType")))
+            return null;
+
+        String[] text = new String[COLUMNS.length];
+        boolean any = false;
+        for(int i = 0; i < COLUMNS.length; i++) {
+            String value = obj.optString(COLUMNS[i], null);
+            if(value != null && i == 0)
+                value = TAGS.matcher(value).replaceAll(" ");
+
+            text[i] = value;
+            any |= value != null && value.length() > 0;
+        }
+        return any ? text : null;
+    }
+
+    private static void bindText(SQLiteStatement stmt, int first, String[] text) {
+        for(int i = 0; i < text.length; i++) {
+            if(text[i] != null)
+                stmt.bindString(first + i, text[i]);
+            else
+                stmt.bindNull(first + i);
+        }
+    }
+
+    /** Reindex the object with the specified ID, whose row has just been written.
+     *
+     * @return The number of statements executed
+     */
+    int update(String id, JSONObject obj, boolean existed) {
+        int statements = 0;
+        if(existed) {
+            m_deleteById.bindString(1, id);
+            m_deleteById.execute();
+            statements++;
+        }
+
+        String[] text = extract(obj);
+        if(text != null) {
+            bindText(m_insertById, 1, text);
+            m_insertById.bindString(COLUMNS.length + 1, id);
+            m_insertById.executeInsert();
+            statements++;
+        }
+        return statements;
+    }
+
+    /** Reindex the object stored in the specified row */
+    void update(long rowId, JSONObject obj) {
+        m_deleteByRowId.bindLong(1, rowId);
+        m_deleteByRowId.execute();
+
+        String[] text = extract(obj);
+        if(text != null) {
+            m_insertByRowId.bindLong(1, rowId);
+            bindText(m_insertByRowId, 2, text);
+            m_insertByRowId.executeInsert();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package eu.e43.impeller.content;
+
+import android.content.SharedPreferences;
+
+/**
+ * The durable sync position of an account's inbox, kept in the FeedSync preferences.
+ *
+ * The head is the newest activity we have. While a walk towards the present is in progress,
+ * the link to the next page to fetch is recorded too: that is the known gap, and the next sync
+ * resumes from it, even if this process died part way through.
+ */
+class SyncJournal {
+    private final SharedPreferences m_prefs;
+    private final String            m_headKey;
+    private final String            m_nextKey;
+
+    SyncJournal(SharedPreferences prefs, String account) {
+        m_prefs     = prefs;
+        m_headKey   = account;
+        m_nextKey   = account + ":next";
+    }
+
+    String getHead() {
+        return m_prefs.getString(m_headKey, null);
+    }
+
+    /** URL of the next page of a walk which didn't finish, or null */
+    String getNext() {
+        return m_prefs.getString(m_nextKey, null);
+    }
+
+    /** Record the position after a page has been committed to the database. This is written
+     *  synchronously, so that it is on disk before the next page is fetched */
+    void checkpoint(String head, String next) {
+        SharedPreferences.Editor e = m_prefs.edit();
+        if(head != null)
+            e.putString(m_headKey, head);
+        if(next != null)
+            e.putString(m_nextKey, next);
+        else
+            e.remove(m_nextKey);
+        e.commit();
+    }
+}
@@ -46,6 +46,8 @@ public class FeedFragment
     Object              m_statusHandle      = null;
     FeedID              m_feedId            = null;
     SwipeRefreshLayout  m_swipeRefreshView  = null;
+    String              m_feedSelection     = null;
+    boolean             m_firstPageLimited  = false;
 
     // Activity IDs
     private static final int ACTIVITY_SELECT_PHOTO = 1;
@@ -156,25 +158,26 @@ public class FeedFragment
         }
     }
 
+    private Uri getFeedUri() {
+        return Uri.parse(PumpContentProvider.FEED_URL).buildUpon()
+                .appendPath(m_account.name)
+                .build();
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        Uri uri =
-                Uri.parse(PumpContentProvider.FEED_URL).buildUpon()
-                        .appendPath(m_account.name)
-                        .build();
+        Uri uri = getFeedUri();
+        String[] projection = new String[] { "_ID", "object.id", "_json", "replies", "likes", "shares" };
+        String sortOrder = "feed_entries._ID DESC";
 
         switch(m_feedId) {
             case MAJOR_FEED:
-                return new CursorLoader(getActivity(), uri,
-                        new String[] { "_ID", "object.id", "_json", "replies", "likes", "shares" },
-                        "verb='share' OR (verb='post' AND object.objectType<>'comment')", null,
-                        "feed_entries._ID DESC");
+                m_feedSelection = "verb='share' OR (verb='post' AND object.objectType<>'comment')";
+                break;
 
             case MINOR_FEED:
-                return new CursorLoader(getActivity(), uri,
-                        new String[] { "_ID", "object.id", "_json", "replies", "likes", "shares" },
-                        "NOT (verb='share' OR (verb='post' AND object.objectType<>'comment'))", null,
-                        "feed_entries._ID DESC");
+                m_feedSelection = "NOT (verb='share' OR (verb='post' AND object.objectType<>'comment'))";
+                break;
 
             case DIRECT_FEED:
                 throw new RuntimeException("Not yet implemented");
@@ -182,17 +185,35 @@ public class FeedFragment
             default:
                 throw new RuntimeException("Bad ID");
         }
+
+        // The loader supplies the first page; the adapter pages in the rest as needed
+        m_adapter.enableWindowing(uri, projection, m_feedSelection, null, sortOrder);
+        m_firstPageLimited = true;
+        return new CursorLoader(getActivity(),
+                uri.buildUpon()
+                        .appendQueryParameter("limit", String.valueOf(ActivityAdapter.PAGE_SIZE))
+                        .build(),
+                projection, m_feedSelection, null, sortOrder);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> objectLoader, Cursor o) {
         if(objectLoader != null && o != null) {
-            o.setNotificationUri(
-                    getActivity().getContentResolver(),
-                    ((CursorLoader) objectLoader).getUri());
+            o.setNotificationUri(getActivity().getContentResolver(), getFeedUri());
         }
         m_adapter.updateCursor(o);
 
+        long floor = m_adapter.getFirstPageFloor();
+        if(m_firstPageLimited && floor >= 0) {
+            // From now on, reload everything from the oldest row of the first page up: new
+            // entries then extend the first page rather than shifting rows out of it
+            CursorLoader loader = (CursorLoader) objectLoader;
+            loader.setUri(getFeedUri());
+            loader.setSelection("(" + m_feedSelection + ") AND feed_entries._ID>=?");
+            loader.setSelectionArgs(new String[] { String.valueOf(floor) });
+            m_firstPageLimited = false;
+        }
+
         if(m_jumpToSelection) {
             int pos = getSelectedItemPosition();
             if(pos >= 0) showItemByPosition(pos);
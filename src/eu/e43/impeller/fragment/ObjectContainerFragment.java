@@ -5,8 +5,6 @@ import eu.e43.impeller.activity.MainActivity;
 import eu.e43.impeller.content.ContentUpdateReceiver;
 import eu.e43.impeller.content.PumpContentProvider;
 
-import android.app.Activity;
-import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -33,6 +31,7 @@ public class ObjectContainerFragment extends Fragment implements LoaderManager.L
     JSONObject          m_object;
     ObjectFragment      m_child;
     MainActivity.Mode   m_mode;
+    String              m_refreshToken;
 
     public static ObjectContainerFragment newInstance(String id, MainActivity.Mode mode) {
         ObjectContainerFragment fragment = new ObjectContainerFragment();
@@ -174,11 +173,8 @@ public class ObjectContainerFragment extends Fragment implements LoaderManager.L
 
     public void queryForObjectUpdate()
     {
-        getActivity().sendOrderedBroadcast(new Intent(
-                ContentUpdateReceiver.UPDATE_OBJECT, Uri.parse(m_id),
-                getActivity(), ContentUpdateReceiver.class
-        ).putExtra("account", getMainActivity().getAccount()), null,
-                null/*updateRX*/, null, Activity.RESULT_OK, null, null);
+        m_refreshToken = ContentUpdateReceiver.requestRefresh(getActivity(),
+                getMainActivity().getAccount(), ContentUpdateReceiver.UPDATE_OBJECT, Uri.parse(m_id));
     }
 
     public JSONObject getObject()
@@ -194,6 +190,8 @@ public class ObjectContainerFragment extends Fragment implements LoaderManager.L
     @Override
     public void onDestroy() {
         super.onDestroy();
+        ContentUpdateReceiver.cancelRefresh(getActivity(), getMainActivity().getAccount(),
+                ContentUpdateReceiver.UPDATE_OBJECT, Uri.parse(m_id), m_refreshToken);
         getMainActivity().onHideObjectFragment(this);
     }
 
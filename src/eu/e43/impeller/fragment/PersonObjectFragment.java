@@ -1,6 +1,5 @@
 package eu.e43.impeller.fragment;
 
-import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
@@ -46,16 +45,21 @@ public class PersonObjectFragment extends ObjectFragment implements CompoundButt
     }
 
     ActivityAdapter m_adapter;
+    String          m_refreshToken;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        getActivity().sendOrderedBroadcast(new Intent(
-                ContentUpdateReceiver.FETCH_USER_FEED, Uri.parse(m_id),
-                getActivity(), ContentUpdateReceiver.class
-        ).putExtra("account", getMainActivity().getAccount()), null,
-                null, null, Activity.RESULT_OK, null, null);
+        m_refreshToken = ContentUpdateReceiver.requestRefresh(getActivity(),
+                getMainActivity().getAccount(), ContentUpdateReceiver.FETCH_USER_FEED, Uri.parse(m_id));
+    }
+
+    @Override
+    public void onDestroy() {
+        ContentUpdateReceiver.cancelRefresh(getActivity(), getMainActivity().getAccount(),
+                ContentUpdateReceiver.FETCH_USER_FEED, Uri.parse(m_id), m_refreshToken);
+        super.onDestroy();
     }
 
     @Override
@@ -10,6 +10,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Typeface;
+import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -41,6 +42,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 
 import eu.e43.impeller.activity.PostActivity;
@@ -54,6 +57,7 @@ import eu.e43.impeller.Utils;
 import eu.e43.impeller.activity.MainActivity;
 import eu.e43.impeller.content.ContentUpdateReceiver;
 import eu.e43.impeller.content.PumpContentProvider;
+import eu.e43.impeller.net.BandwidthPolicy;
 import eu.e43.impeller.activity.ActivityWithAccount;
 import eu.e43.impeller.uikit.InReplyToView;
 import eu.e43.impeller.uikit.LocationView;
@@ -68,6 +72,8 @@ public class StandardObjectFragment extends ObjectFragment implements View.OnCli
     private Context             m_appContext;
     private Account             m_account;
 	private CommentAdapter      m_commentAdapter;
+    private String              m_refreshToken;
+    private URI                 m_fullImageUri;
 
     // Contains all WebViews, so they may be appropriately paused/resumed
     private ArrayList<WebView>  m_webViews    = new ArrayList<WebView>();
@@ -147,14 +153,17 @@ public class StandardObjectFragment extends ObjectFragment implements View.OnCli
         lv.addHeaderView(header);
         lv.addFooterView(footer);
 
-        JSONObject pump_io = obj.optJSONObject("pump_io");
-        JSONObject image = obj.optJSONObject("fullImage");
-        if(image == null && pump_io != null) {
-            image = pump_io.optJSONObject("fullImage");
-        }
-
-        if(image == null) {
-            image = obj.optJSONObject("image");
+        JSONObject image = BandwidthPolicy.get(getActivity()).getImage(obj);
+
+        // What to show when the image is opened. When saving data, the full size image is
+        // only fetched then
+        JSONObject full = BandwidthPolicy.getFullImage(obj);
+        if(full == null)
+            full = image;
+        try {
+            m_fullImageUri = full != null ? new URI(Utils.getImageUrl(full)) : null;
+        } catch(URISyntaxException e) {
+            m_fullImageUri = null;
         }
 
         String url  = obj.optString("url", "about:blank");
@@ -229,14 +238,19 @@ public class StandardObjectFragment extends ObjectFragment implements View.OnCli
 
         objectUpdated(obj, lv);
 
-        getActivity().sendOrderedBroadcast(new Intent(
-                ContentUpdateReceiver.UPDATE_REPLIES, Uri.parse(m_id),
-                getActivity(), ContentUpdateReceiver.class
-        ).putExtra("account", getMainActivity().getAccount()), null);
+        m_refreshToken = ContentUpdateReceiver.requestRefresh(getActivity(),
+                getMainActivity().getAccount(), ContentUpdateReceiver.UPDATE_REPLIES, Uri.parse(m_id));
 
         return lv;
     }
 
+    @Override
+    public void onDestroyView() {
+        ContentUpdateReceiver.cancelRefresh(getActivity(), getMainActivity().getAccount(),
+                ContentUpdateReceiver.UPDATE_REPLIES, Uri.parse(m_id), m_refreshToken);
+        super.onDestroyView();
+    }
+
     @Override
     public void objectUpdated(JSONObject obj) {
         View root = getView();
@@ -420,8 +434,22 @@ public class StandardObjectFragment extends ObjectFragment implements View.OnCli
             }
 
             case R.id.image: {
-                TouchImageView img = new TouchImageView(getActivity());
+                final TouchImageView img = new TouchImageView(getActivity());
                 img.setImageDrawable(((ImageView) view).getDrawable());
+                if(m_fullImageUri != null) {
+                    // Replace what we showed in the list, perhaps a thumbnail, with the image
+                    // at the size of the screen
+                    getImageLoader().load(new ImageLoader.Listener() {
+                        @Override
+                        public void loaded(BitmapDrawable dr, URI uri) {
+                            img.setImageDrawable(dr);
+                        }
+
+                        @Override
+                        public void error(URI uri) {
+                        }
+                    }, m_fullImageUri);
+                }
                 getMainActivity().showOverlay(new OverlayController() {
                     @Override
                     public void onHidden() {
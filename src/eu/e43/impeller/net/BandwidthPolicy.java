@@ -0,0 +1,129 @@
+package eu.e43.impeller.net;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import org.json.JSONObject;
+
+import eu.e43.impeller.Constants;
+
+/**
+ * How much data we may spend on the current network.
+ *
+ * The network is classified as unmetered (e.g. WiFi), metered (mobile data) or roaming. In
+ * the default "auto" mode of the data saver preference, metered networks get smaller sync
+ * pages and thumbnails rather than full size images, and roaming networks additionally get
+ * a single page per sync and no contact photo downloads. The preference can instead force
+ * the saving behaviour everywhere, or turn it off.
+ */
+public class BandwidthPolicy {
+    /* Network classes */
+    public static final int NETWORK_UNMETERED = 0;
+    public static final int NETWORK_METERED   = 1;
+    public static final int NETWORK_ROAMING   = 2;
+
+    /* Values of Constants.PREF_DATA_SAVER */
+    public static final String SAVER_AUTO   = "auto";
+    public static final String SAVER_ALWAYS = "always";
+    public static final String SAVER_NEVER  = "never";
+
+    /* Sync paging by network class */
+    private static final int[] SYNC_PAGE_SIZE  = { 200, 50, 20 };
+    private static final int[] SYNC_MAX_PAGES  = {  10,  4,  1 };
+
+    private final int m_network;
+
+    /** The policy for network (a NETWORK_ constant) under the data saver setting saver */
+    BandwidthPolicy(int network, String saver) {
+        if(SAVER_NEVER.equals(saver))
+            m_network = NETWORK_UNMETERED;
+        else if(SAVER_ALWAYS.equals(saver))
+            m_network = Math.max(network, NETWORK_METERED);
+        else
+            m_network = network;
+    }
+
+    /** The policy for the current network and preferences */
+    public static BandwidthPolicy get(Context ctx) {
+        // The default preferences, reloaded in case the setting changed in another process
+        String saver = ctx.getSharedPreferences(ctx.getPackageName() + "_preferences",
+                Context.MODE_MULTI_PROCESS).getString(Constants.PREF_DATA_SAVER, SAVER_AUTO);
+        return new BandwidthPolicy(classify(ctx), saver);
+    }
+
+    /** Classify the active network. With no network, nothing will be fetched anyway */
+    public static int classify(Context ctx) {
+        ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        if(info == null)
+            return NETWORK_UNMETERED;
+        else if(info.isRoaming())
+            return NETWORK_ROAMING;
+
+        boolean metered;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            metered = isActiveNetworkMetered(cm);
+        else
+            metered = info.getType() != ConnectivityManager.TYPE_WIFI
+                   && info.getType() != ConnectivityManager.TYPE_ETHERNET;
+        return metered ? NETWORK_METERED : NETWORK_UNMETERED;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isActiveNetworkMetered(ConnectivityManager cm) {
+        return cm.isActiveNetworkMetered();
+    }
+
+    /** The network class the policy is in effect for, after the data saver setting */
+    public int getNetwork() {
+        return m_network;
+    }
+
+    public boolean isSavingData() {
+        return m_network != NETWORK_UNMETERED;
+    }
+
+    /** Items to request per page of the inbox */
+    public int getSyncPageSize() {
+        return SYNC_PAGE_SIZE[m_network];
+    }
+
+    /** Pages of the inbox to fetch per sync */
+    public int getMaxSyncPages() {
+        return SYNC_MAX_PAGES[m_network];
+    }
+
+    /** Whether to download media nobody is looking at, e.g. contact photos */
+    public boolean allowBackgroundMedia() {
+        return m_network != NETWORK_ROAMING;
+    }
+
+    /** The image to show for obj: its full size image, or when saving data its thumbnail,
+     *  falling back to whichever it has */
+    public JSONObject getImage(JSONObject obj) {
+        JSONObject full  = getFullImage(obj);
+        JSONObject thumb = obj.optJSONObject("image");
+        if(isSavingData())
+            return thumb != null ? thumb : full;
+        else
+            return full != null ? full : thumb;
+    }
+
+    /** obj's full size image, or null */
+    public static JSONObject getFullImage(JSONObject obj) {
+        JSONObject full = obj.optJSONObject("fullImage");
+        JSONObject pump_io = obj.optJSONObject("pump_io");
+        if(full == null && pump_io != null)
+            full = pump_io.optJSONObject("fullImage");
+        return full;
+    }
+
+    @Override
+    public String toString() {
+        return "BandwidthPolicy(network=" + m_network + ", pageSize=" + getSyncPageSize()
+                + ", maxPages=" + getMaxSyncPages() + ")";
+    }
+}
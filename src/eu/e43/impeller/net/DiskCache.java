@@ -0,0 +1,498 @@
+package eu.e43.impeller.net;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.e43.impeller.Metrics;
+import eu.e43.impeller.Utils;
+
+/**
+ * A size-bounded cache of response bodies on disk, keyed by URI, which evicts the least
+ * recently used entries.
+ *
+ * Each entry is a file named by the SHA-1 of its key. Entries are written to a temporary
+ * file, synced and renamed into place, so a crash leaves the old entry or the new one but
+ * never a torn file. Use is recorded in an append-only journal, which is replayed (and
+ * reconciled against the directory) when the cache is opened, and rewritten once it has
+ * grown well past the number of entries.
+ *
+ * The UI and sync processes share the image cache. The files are the truth: an entry
+ * written by the other process is adopted when it is looked up, and one it has evicted is
+ * simply a miss. Before trimming after a write, the directory is rescanned, so that the
+ * entries of both processes together are kept within the size limit. The journal only orders
+ * eviction, and has a single writer: the first process to open the cache takes a lock on it,
+ * and the other leaves the journal alone (so its reads don't count towards recency until the
+ * cache is next opened).
+ *
+ * Hits, misses, writes and evictions are counted in Metrics under the cache's name.
+ */
+public class DiskCache {
+    private static final String TAG = "DiskCache";
+
+    private static final String JOURNAL      = "journal";
+    private static final String JOURNAL_TMP  = "journal.tmp";
+    private static final String JOURNAL_LOCK = "journal.lock";
+    private static final String MAGIC        = "eu.e43.impeller.DiskCache 1";
+    private static final String TMP_SUFFIX   = ".tmp";
+
+    /** Journal lines allowed beyond those needed to describe the entries */
+    private static final int  JOURNAL_SLACK = 2000;
+    /** Temporary files older than this were abandoned */
+    private static final long STALE_TMP_AGE = 60 * 1000;
+
+    private static final long IMAGE_CACHE_SIZE = 32 * 1024 * 1024;
+    private static DiskCache ms_imageCache;
+
+    private static final AtomicLong ms_tmpCount = new AtomicLong();
+
+    /* Least recently modified first */
+    private static final Comparator<File> BY_MODIFIED = new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+            long am = a.lastModified(), bm = b.lastModified();
+            return am < bm ? -1 : (am > bm ? 1 : 0);
+        }
+    };
+
+    private final File   m_dir;
+    private final long   m_maxSize;
+    private final String m_name;
+
+    /* File name -> size, least recently used first */
+    private final LinkedHashMap<String, Long> m_entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long    m_size;
+    private boolean m_opened;
+    private Writer  m_journal;
+    private int     m_journalLines;
+    /* Held while we are the journal's writer */
+    private FileLock m_journalLock;
+
+    /** The cache of image bytes shared by ImageLoader and the contacts sync */
+    public static synchronized DiskCache getImageCache(Context ctx) {
+        if(ms_imageCache == null) {
+            ms_imageCache = new DiskCache(
+                    new File(ctx.getApplicationContext().getCacheDir(), "images"),
+                    IMAGE_CACHE_SIZE, "images");
+        }
+        return ms_imageCache;
+    }
+
+    /** A cache of at most maxSize bytes in dir. It is opened on first use, off the UI thread */
+    public DiskCache(File dir, long maxSize, String name) {
+        m_dir     = dir;
+        m_maxSize = maxSize;
+        m_name    = name;
+    }
+
+    /** An entry which is being written. Write its body to getOutputStream(), then commit() it,
+     *  or abort() it (which does nothing once it has been committed) */
+    public class Editor {
+        private final String           m_entry;
+        private final File             m_tmp;
+        private final FileOutputStream m_out;
+        private boolean                m_done;
+
+        private Editor(String entry, File tmp) throws FileNotFoundException {
+            m_entry = entry;
+            m_tmp   = tmp;
+            m_out   = new FileOutputStream(tmp);
+        }
+
+        public OutputStream getOutputStream() {
+            return m_out;
+        }
+
+        public void commit() throws IOException {
+            m_done = true;
+            try {
+                try {
+                    m_out.getFD().sync();
+                } finally {
+                    m_out.close();
+                }
+                committed(m_entry, m_tmp);
+            } catch(IOException e) {
+                m_tmp.delete();
+                throw e;
+            }
+        }
+
+        public void abort() {
+            if(m_done)
+                return;
+            m_done = true;
+            try {
+                m_out.close();
+            } catch(IOException e) {
+                // Going anyway
+            }
+            m_tmp.delete();
+        }
+    }
+
+    /** The body cached for key, or null */
+    public FileInputStream get(String key) {
+        String entry = Utils.sha1Hex(key);
+        File file = new File(m_dir, entry);
+
+        synchronized(this) {
+            open();
+
+            Long size = m_entries.get(entry);
+            FileInputStream in;
+            try {
+                in = new FileInputStream(file);
+            } catch(FileNotFoundException e) {
+                if(size != null) {
+                    // Evicted by the other process
+                    m_entries.remove(entry);
+                    m_size -= size;
+                }
+                Metrics.increment(m_name + ".misses");
+                return null;
+            }
+
+            if(size == null) {
+                // Written by the other process
+                size = file.length();
+                m_entries.put(entry, size);
+                m_size += size;
+                journal("W " + entry + " " + size);
+                trim();
+            } else {
+                journal("R " + entry);
+            }
+            compactJournal();
+
+            Metrics.increment(m_name + ".hits");
+            return in;
+        }
+    }
+
+    /** Begin writing the entry for key */
+    public Editor edit(String key) throws IOException {
+        String entry = Utils.sha1Hex(key);
+        synchronized(this) {
+            open();
+        }
+        return new Editor(entry, new File(m_dir,
+                entry + "." + Process.myPid() + "-" + ms_tmpCount.incrementAndGet() + TMP_SUFFIX));
+    }
+
+    /** Stream body into the entry for key, returning the entry open for reading. What is
+     *  returned can be read even if the entry is evicted meanwhile */
+    public FileInputStream put(String key, InputStream body) throws IOException {
+        Editor editor = edit(key);
+        try {
+            Utils.copyBytes(editor.getOutputStream(), body);
+            FileInputStream in = new FileInputStream(editor.m_tmp);
+            try {
+                editor.commit();
+            } catch(IOException e) {
+                in.close();
+                throw e;
+            }
+            return in;
+        } finally {
+            editor.abort();
+        }
+    }
+
+    /** Drop the entry for key, e.g. because it turned out to be corrupt */
+    public synchronized void remove(String key) {
+        open();
+        String entry = Utils.sha1Hex(key);
+        Long size = m_entries.remove(entry);
+        if(size != null)
+            m_size -= size;
+        if(new File(m_dir, entry).delete() || size != null)
+            journal("D " + entry);
+    }
+
+    private synchronized void committed(String entry, File tmp) throws IOException {
+        File file = new File(m_dir, entry);
+        if(!tmp.renameTo(file))
+            throw new IOException("Unable to commit " + file);
+
+        long size = file.length();
+        Long old = m_entries.put(entry, size);
+        m_size += size - (old != null ? old : 0);
+        journal("W " + entry + " " + size);
+        Metrics.increment(m_name + ".writes");
+        Metrics.add(m_name + ".bytesWritten", size);
+
+        rescan();
+        trim();
+        compactJournal();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = m_entries.entrySet().iterator();
+        while(m_size > m_maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            m_size -= eldest.getValue();
+            new File(m_dir, eldest.getKey()).delete();
+            journal("D " + eldest.getKey());
+            Metrics.increment(m_name + ".evictions");
+        }
+    }
+
+    private void open() {
+        if(m_opened)
+            return;
+        m_opened = true;
+
+        if(!m_dir.isDirectory() && !m_dir.mkdirs())
+            Log.w(TAG, "Unable to create " + m_dir);
+
+        boolean writer = lockJournal();
+        boolean valid = readJournal();
+        reconcile();
+        if(writer && valid)
+            openJournal();
+        else if(writer)
+            rewriteJournal();
+        trim();
+
+        Log.i(TAG, m_name + ": " + m_entries.size() + " entries, " + m_size / 1024 + "kB");
+    }
+
+    /** Try to become the journal's writer */
+    private boolean lockJournal() {
+        try {
+            RandomAccessFile file = new RandomAccessFile(new File(m_dir, JOURNAL_LOCK), "rw");
+            m_journalLock = file.getChannel().tryLock();
+            if(m_journalLock == null)
+                file.close();
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to lock journal of " + m_dir, e);
+        } catch(OverlappingFileLockException e) {
+            // Another DiskCache on the same directory in this process has it
+        }
+        return m_journalLock != null;
+    }
+
+    /** Whether name is that of an entry, rather than a temporary or bookkeeping file */
+    private static boolean isEntry(String name) {
+        return !name.equals(JOURNAL) && !name.equals(JOURNAL_TMP) && !name.equals(JOURNAL_LOCK)
+                && !name.endsWith(TMP_SUFFIX);
+    }
+
+    /** Replay the journal into m_entries. Returns false if it is missing or unreadable */
+    private boolean readJournal() {
+        File file = new File(m_dir, JOURNAL);
+        if(!file.exists())
+            return false;
+
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+            if(!MAGIC.equals(r.readLine()))
+                return false;
+
+            String line;
+            while((line = r.readLine()) != null) {
+                m_journalLines++;
+                String[] parts = line.split(" ");
+                if(parts.length == 3 && parts[0].equals("W")) {
+                    try {
+                        m_entries.put(parts[1], Long.parseLong(parts[2]));
+                    } catch(NumberFormatException e) {
+                        // A torn line; the directory is checked anyway
+                    }
+                } else if(parts.length == 2 && parts[0].equals("R")) {
+                    m_entries.get(parts[1]);
+                } else if(parts.length == 2 && parts[0].equals("D")) {
+                    m_entries.remove(parts[1]);
+                }
+            }
+            return true;
+        } catch(IOException e) {
+            Log.w(TAG, "Error reading journal of " + m_dir, e);
+            return false;
+        } finally {
+            if(r != null) {
+                try {
+                    r.close();
+                } catch(IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /** Make m_entries agree with the files actually present */
+    private void reconcile() {
+        ArrayList<String> known = new ArrayList<String>();
+        for(String entry : m_entries.keySet()) {
+            if(new File(m_dir, entry).isFile())
+                known.add(entry);
+        }
+
+        // Files we have no record of are assumed to be the least recently used
+        ArrayList<File> unknown = new ArrayList<File>();
+        File[] files = m_dir.listFiles();
+        if(files != null) {
+            long now = System.currentTimeMillis();
+            for(File f : files) {
+                String name = f.getName();
+                if(name.endsWith(TMP_SUFFIX)) {
+                    if(now - f.lastModified() > STALE_TMP_AGE)
+                        f.delete();
+                } else if(isEntry(name) && !m_entries.containsKey(name)) {
+                    unknown.add(f);
+                }
+            }
+        }
+        Collections.sort(unknown, BY_MODIFIED);
+
+        m_entries.clear();
+        m_size = 0;
+        for(File f : unknown) {
+            m_entries.put(f.getName(), f.length());
+            m_size += f.length();
+        }
+        for(String entry : known) {
+            long size = new File(m_dir, entry).length();
+            m_entries.put(entry, size);
+            m_size += size;
+        }
+    }
+
+    /** Catch up with the other process: forget the entries it has evicted, and adopt those it
+     *  has written (as the most recently used, which they most likely are) */
+    private void rescan() {
+        File[] files = m_dir.listFiles();
+        if(files == null)
+            return;
+
+        HashMap<String, File> present = new HashMap<String, File>();
+        for(File f : files) {
+            if(isEntry(f.getName()))
+                present.put(f.getName(), f);
+        }
+
+        Iterator<Map.Entry<String, Long>> it = m_entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            File f = present.remove(entry.getKey());
+            if(f == null) {
+                it.remove();
+                m_size -= entry.getValue();
+            } else {
+                long size = f.length();
+                m_size += size - entry.getValue();
+                entry.setValue(size);
+            }
+        }
+
+        ArrayList<File> adopted = new ArrayList<File>(present.values());
+        Collections.sort(adopted, BY_MODIFIED);
+        for(File f : adopted) {
+            long size = f.length();
+            m_entries.put(f.getName(), size);
+            m_size += size;
+            journal("W " + f.getName() + " " + size);
+        }
+    }
+
+    private void openJournal() {
+        try {
+            m_journal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(m_dir, JOURNAL), true), "US-ASCII"));
+        } catch(IOException e) {
+            Log.w(TAG, "Unable to open journal of " + m_dir, e);
+            m_journal = null;
+        }
+    }
+
+    private void journal(String line) {
+        if(m_journal == null)
+            return;
+
+        try {
+            m_journal.write(line);
+            m_journal.write('\n');
+            m_journal.flush();
+            m_journalLines++;
+        } catch(IOException e) {
+            // Carry on without; the order is rebuilt from the files next time
+            Log.w(TAG, "Error writing journal of " + m_dir, e);
+            closeJournal();
+        }
+    }
+
+    private void compactJournal() {
+        if(m_journalLock != null && m_journalLines > m_entries.size() + JOURNAL_SLACK)
+            rewriteJournal();
+    }
+
+    /** Replace the journal with one describing just the current entries */
+    private void rewriteJournal() {
+        closeJournal();
+
+        File tmp = new File(m_dir, JOURNAL_TMP);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"));
+                w.write(MAGIC);
+                w.write('\n');
+                for(Map.Entry<String, Long> e : m_entries.entrySet()) {
+                    w.write("W " + e.getKey() + " " + e.getValue() + "\n");
+                }
+                w.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if(!tmp.renameTo(new File(m_dir, JOURNAL)))
+                throw new IOException("Unable to replace journal");
+            m_journalLines = m_entries.size();
+        } catch(IOException e) {
+            Log.w(TAG, "Error rewriting journal of " + m_dir, e);
+            tmp.delete();
+        }
+
+        openJournal();
+    }
+
+    private void closeJournal() {
+        if(m_journal == null)
+            return;
+
+        try {
+            m_journal.close();
+        } catch(IOException e) {
+            // Ignore
+        }
+        m_journal = null;
+    }
+}
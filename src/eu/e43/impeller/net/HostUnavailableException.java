@@ -0,0 +1,33 @@
+package eu.e43.impeller.net;
+
+import android.content.SyncResult;
+
+import java.io.IOException;
+
+/**
+ * Thrown without contacting a host which has been failing, until it is due to be tried again.
+ */
+public class HostUnavailableException extends IOException {
+    private final String m_host;
+    private final long   m_retryTime;
+
+    HostUnavailableException(String host, long retryTime) {
+        super(host + " is unavailable");
+        m_host      = host;
+        m_retryTime = retryTime;
+    }
+
+    public String getHost() {
+        return m_host;
+    }
+
+    /** When the host may be tried again, in System.currentTimeMillis() terms */
+    public long getRetryTime() {
+        return m_retryTime;
+    }
+
+    /** Ask the sync manager not to retry the sync before the host is due to be tried again */
+    public void delay(SyncResult result) {
+        result.delayUntil = Math.max(result.delayUntil, m_retryTime / 1000);
+    }
+}
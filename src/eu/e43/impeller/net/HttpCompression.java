@@ -0,0 +1,175 @@
+package eu.e43.impeller.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import eu.e43.impeller.Metrics;
+
+/**
+ * Content-Encoding for our HTTP traffic.
+ *
+ * Requests ask for gzip or deflate, and responses are decoded as they are read, so a streaming
+ * consumer never holds more than a buffer's worth of the body. Once Accept-Encoding is set
+ * explicitly the platform no longer decodes gzip transparently; HttpTransport reads every
+ * response through getInputStream()/getErrorStream() here.
+ *
+ * Wire and decoded byte counts are kept in Metrics, by encoding; see logRatios().
+ */
+public class HttpCompression {
+    private static final String TAG = "HttpCompression";
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /* Request bodies smaller than this aren't worth compressing */
+    private static final int MIN_REQUEST_COMPRESS = 512;
+
+    /* Hosts which refused a compressed request body */
+    private static final String PREFS = "eu.e43.impeller.HttpCompression";
+
+    private static final String[] ENCODINGS = { "gzip", "deflate", "identity" };
+
+    /** Ask for a compressed response */
+    public static void accept(URLConnection conn) {
+        conn.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+    }
+
+    /** The decoded response body */
+    public static InputStream getInputStream(URLConnection conn) throws IOException {
+        return decode(conn.getInputStream(), conn.getContentEncoding());
+    }
+
+    /** The decoded error response body, or null if there is none */
+    public static InputStream getErrorStream(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getErrorStream();
+        return in != null ? decode(in, conn.getContentEncoding()) : null;
+    }
+
+    private static InputStream decode(InputStream in, String encoding) throws IOException {
+        String coding = encoding != null ? encoding.trim().toLowerCase(Locale.US) : "identity";
+
+        if(coding.equals("gzip") || coding.equals("x-gzip")) {
+            in = new GZIPInputStream(new CountingInputStream(in, "http.gzip.wire"));
+            return new CountingInputStream(in, "http.gzip.decoded");
+        } else if(coding.equals("deflate")) {
+            // Should be zlib wrapped, but some servers send a bare deflate stream
+            PushbackInputStream peek = new PushbackInputStream(
+                    new CountingInputStream(in, "http.deflate.wire"), 2);
+            int b0 = peek.read();
+            int b1 = b0 != -1 ? peek.read() : -1;
+            if(b1 != -1) peek.unread(b1);
+            if(b0 != -1) peek.unread(b0);
+
+            boolean zlib = b1 != -1 && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+            return new CountingInputStream(
+                    new InflatingInputStream(peek, new Inflater(!zlib)), "http.deflate.decoded");
+        } else {
+            if(!coding.equals("identity"))
+                Log.w(TAG, "Unexpected Content-Encoding " + encoding);
+            return new CountingInputStream(in, "http.identity.wire");
+        }
+    }
+
+    /** Whether a request body of the specified size should be gzipped for host */
+    public static boolean shouldCompressRequest(Context ctx, String host, int length) {
+        return length >= MIN_REQUEST_COMPRESS
+            && !ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE).getBoolean(host, false);
+    }
+
+    /** Record that host doesn't understand compressed request bodies */
+    public static void refuseCompressedRequests(Context ctx, String host) {
+        Log.i(TAG, host + " refuses compressed requests");
+        SharedPreferences.Editor e = ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit();
+        e.putBoolean(host, true);
+        e.commit();
+    }
+
+    /** gzip a request body */
+    public static byte[] compress(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream gz = new GZIPOutputStream(out);
+        gz.write(body);
+        gz.close();
+
+        byte[] compressed = out.toByteArray();
+        Metrics.add("http.request.raw",  body.length);
+        Metrics.add("http.request.wire", compressed.length);
+        return compressed;
+    }
+
+    /** Log the compression ratio achieved for each encoding so far */
+    public static void logRatios() {
+        StringBuilder sb = new StringBuilder();
+        for(String coding : ENCODINGS) {
+            long wire    = Metrics.value("http." + coding + ".wire");
+            long decoded = coding.equals("identity") ? wire : Metrics.value("http." + coding + ".decoded");
+            if(wire > 0) {
+                sb.append(String.format(Locale.US, " %s %d/%d bytes (%.1fx)",
+                        coding, wire, decoded, (double) decoded / wire));
+            }
+        }
+
+        long raw = Metrics.value("http.request.raw");
+        if(raw > 0) {
+            long wire = Metrics.value("http.request.wire");
+            sb.append(String.format(Locale.US, " requests %d/%d bytes (%.1fx)",
+                    wire, raw, (double) raw / wire));
+        }
+        Log.i(TAG, "Compression:" + (sb.length() > 0 ? sb : " none"));
+    }
+
+    /** Adds the number of bytes read through it to a counter */
+    private static class CountingInputStream extends FilterInputStream {
+        private final String m_counter;
+
+        CountingInputStream(InputStream in, String counter) {
+            super(in);
+            m_counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1)
+                Metrics.increment(m_counter);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if(n > 0)
+                Metrics.add(m_counter, n);
+            return n;
+        }
+    }
+
+    /** InflaterInputStream doesn't release an Inflater it was given until finalization */
+    private static class InflatingInputStream extends InflaterInputStream {
+        InflatingInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package eu.e43.impeller.net;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import eu.e43.impeller.ImpellerApplication;
+import eu.e43.impeller.Metrics;
+import oauth.signpost.OAuthConsumer;
+import oauth.signpost.exception.OAuthException;
+
+/**
+ * The network Transport, over the platform's HttpURLConnection.
+ *
+ * The platform keeps a pool of idle keep-alive connections per host, which a connection only
+ * returns to once its response body has been read to the end and closed; Response.close()
+ * does that. Redirects are followed here rather than by the platform, so that each hop can be
+ * signed (or not) and counted.
+ */
+public class HttpTransport extends Transport {
+    private static final String TAG = "HttpTransport";
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT    = 15000;
+    private static final int MAX_REDIRECTS   = 5;
+
+    /* Idle connections kept per host. Syncs, refreshes and image loads run concurrently */
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /* Streaming chunk size for bodies of unknown length */
+    private static final int CHUNK_SIZE = 4096;
+
+    /* Most of an unread body read out on close to save the connection; past this, a new one
+     * is cheaper */
+    private static final int DRAIN_LIMIT = 16 * 1024;
+
+    HttpTransport() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        URL url = request.getUrl();
+        String method = request.getMethod();
+        Request.Body body = request.getBody();
+        long start = SystemClock.elapsedRealtime();
+
+        try {
+            for(int redirects = 0; ; redirects++) {
+                HttpURLConnection conn = open(request, url, method, body);
+                int status = conn.getResponseCode();
+                String location = conn.getHeaderField("Location");
+
+                if(!request.getFollowRedirects() || location == null || !isRedirect(status)
+                        || (body != null && status != HttpURLConnection.HTTP_SEE_OTHER)) {
+                    // Bodies are streamed, so can't be sent again; a 303 drops the body
+                    Metrics.increment("http.requests");
+                    Metrics.add("http.latencyMs", SystemClock.elapsedRealtime() - start);
+                    if(status >= 400)
+                        Metrics.increment("http.errors");
+                    return new ConnectionResponse(url, conn, status);
+                }
+
+                if(redirects == MAX_REDIRECTS)
+                    throw new IOException("Redirection limit exceeded");
+
+                // Read out the body so that the connection can be reused
+                new ConnectionResponse(url, conn, status).close();
+                Metrics.increment("http.redirects");
+
+                url = new URL(url, location);
+                Log.v(TAG, "Following redirect to " + url);
+                if(status == HttpURLConnection.HTTP_SEE_OTHER) {
+                    method = "GET";
+                    body   = null;
+                }
+            }
+        } catch(IOException e) {
+            Metrics.increment("http.failures");
+            throw e;
+        }
+    }
+
+    private static boolean isRedirect(int status) {
+        switch(status) {
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case 307: // Temporary redirect
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private HttpURLConnection open(Request request, URL url, String method, Request.Body body)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setInstanceFollowRedirects(false);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("User-Agent", "E43 Impeller/" + ImpellerApplication.ms_versionCode);
+        HttpCompression.accept(conn);
+
+        for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if(body == null && header.getKey().startsWith("Content-"))
+                continue;
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        if(body != null) {
+            conn.setDoOutput(true);
+            long length = body.getLength();
+            if(length >= 0 && length < Integer.MAX_VALUE) {
+                conn.setFixedLengthStreamingMode((int) length);
+            } else {
+                conn.setChunkedStreamingMode(CHUNK_SIZE);
+            }
+        }
+
+        OAuthConsumer signer = request.getSigner(url);
+        if(signer != null) {
+            try {
+                // Consumers hold per-request state while signing
+                long start = System.nanoTime();
+                synchronized(signer) {
+                    signer.sign(conn);
+                }
+                Metrics.increment("oauth.signs");
+                Metrics.add("oauth.signMicros", (System.nanoTime() - start) / 1000);
+            } catch(OAuthException e) {
+                IOException ioe = new IOException("Unable to sign request to " + url);
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+
+        if(body != null) {
+            OutputStream out = conn.getOutputStream();
+            try {
+                body.writeTo(out);
+            } finally {
+                out.close();
+            }
+        }
+        return conn;
+    }
+
+    private static class ConnectionResponse extends Response {
+        private final URL               m_url;
+        private final HttpURLConnection m_conn;
+        private final int               m_status;
+        private InputStream             m_body;
+
+        ConnectionResponse(URL url, HttpURLConnection conn, int status) {
+            m_url    = url;
+            m_conn   = conn;
+            m_status = status;
+        }
+
+        @Override
+        public URL getUrl() {
+            return m_url;
+        }
+
+        @Override
+        public int getStatus() {
+            return m_status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return m_conn.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return m_conn.getContentLength();
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            if(m_body == null) {
+                m_body = m_status >= 400
+                        ? HttpCompression.getErrorStream(m_conn)
+                        : HttpCompression.getInputStream(m_conn);
+                if(m_body == null)
+                    m_body = new ByteArrayInputStream(new byte[0]);
+            }
+            return m_body;
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                InputStream body = getBody();
+                byte[] buf = new byte[CHUNK_SIZE];
+                int n, drained = 0;
+                while(drained < DRAIN_LIMIT && (n = body.read(buf)) != -1)
+                    drained += n;
+                body.close();
+            } catch(IOException e) {
+                // The connection won't be reused
+                Log.v(TAG, "Discarding connection to " + m_url.getHost());
+            }
+        }
+    }
+}
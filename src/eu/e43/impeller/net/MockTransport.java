@@ -0,0 +1,138 @@
+package eu.e43.impeller.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An in-memory Transport, which answers requests with canned responses by URL (and 404 for
+ * anything else) and records the requests it was sent. Install it with Transport.set() to
+ * exercise network code without a server; wrap it in a RetryingTransport, with failNext(), to
+ * exercise the handling of a failing server.
+ */
+public class MockTransport extends Transport {
+    private final Map<String, Canned> m_responses = new HashMap<String, Canned>();
+    private final List<Request>       m_requests  = new ArrayList<Request>();
+    private final List<byte[]>        m_bodies    = new ArrayList<byte[]>();
+    private final Map<String, Integer> m_failures = new HashMap<String, Integer>();
+
+    private static class Canned {
+        int                 status;
+        Map<String, String> headers = new HashMap<String, String>();
+        byte[]              body;
+    }
+
+    public void respond(String url, int status, String body) {
+        respond(url, status, null, body);
+    }
+
+    public synchronized void respond(String url, int status, Map<String, String> headers, String body) {
+        Canned c = new Canned();
+        c.status = status;
+        if(headers != null) {
+            for(Map.Entry<String, String> header : headers.entrySet())
+                c.headers.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+        }
+        try {
+            c.body = body != null ? body.getBytes("UTF-8") : new byte[0];
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        m_responses.put(url, c);
+    }
+
+    /** Fail the next count requests for url as if the connection had been lost */
+    public synchronized void failNext(String url, int count) {
+        m_failures.put(url, count);
+    }
+
+    /** The requests executed so far, oldest first */
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(m_requests);
+    }
+
+    /** The body sent with the index'th request, or null */
+    public synchronized byte[] getRequestBody(int index) {
+        return m_bodies.get(index);
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        byte[] sent = null;
+        if(request.getBody() != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            request.getBody().writeTo(out);
+            sent = out.toByteArray();
+        }
+
+        Canned c;
+        synchronized(this) {
+            m_requests.add(request);
+            m_bodies.add(sent);
+            String url = request.getUrl().toString();
+            Integer failures = m_failures.get(url);
+            if(failures != null) {
+                if(failures > 1)
+                    m_failures.put(url, failures - 1);
+                else
+                    m_failures.remove(url);
+                throw new IOException("Injected failure for " + url);
+            }
+            c = m_responses.get(url);
+        }
+
+        if(c == null) {
+            c = new Canned();
+            c.status = 404;
+            c.body   = new byte[0];
+        }
+        return new CannedResponse(request.getUrl(), c);
+    }
+
+    private static class CannedResponse extends Response {
+        private final URL    m_url;
+        private final Canned m_canned;
+
+        CannedResponse(URL url, Canned canned) {
+            m_url    = url;
+            m_canned = canned;
+        }
+
+        @Override
+        public URL getUrl() {
+            return m_url;
+        }
+
+        @Override
+        public int getStatus() {
+            return m_canned.status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return m_canned.headers.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public long getContentLength() {
+            return m_canned.body.length;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(m_canned.body);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
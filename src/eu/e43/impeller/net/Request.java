@@ -0,0 +1,114 @@
+package eu.e43.impeller.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import oauth.signpost.OAuthConsumer;
+
+/**
+ * An HTTP request, to be executed by a Transport.
+ *
+ * The setters return the request, so that one can be put together in a single expression:
+ * new Request(url).header("If-None-Match", etag).sign(consumer)
+ */
+public class Request {
+    /** A request body, written out as the request is sent */
+    public interface Body {
+        /** Length in bytes, or -1 if unknown */
+        public long getLength();
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final URL                 m_url;
+    private final Map<String, String> m_headers = new LinkedHashMap<String, String>();
+    private String                    m_method = "GET";
+    private Body                      m_body;
+    private OAuthConsumer             m_signer;
+    private String                    m_signHost;
+    private boolean                   m_followRedirects = true;
+
+    public Request(URL url) {
+        m_url = url;
+    }
+
+    public static Body bytes(final byte[] data) {
+        return new Body() {
+            @Override
+            public long getLength() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        };
+    }
+
+    public Request header(String name, String value) {
+        m_headers.put(name, value);
+        return this;
+    }
+
+    public Request headers(Map<String, String> headers) {
+        if(headers != null)
+            m_headers.putAll(headers);
+        return this;
+    }
+
+    public Request post(String contentType, Body body) {
+        m_method = "POST";
+        m_body   = body;
+        return header("Content-Type", contentType);
+    }
+
+    /** OAuth sign the request, and any redirect to the same host */
+    public Request sign(OAuthConsumer consumer) {
+        return sign(consumer, m_url.getHost());
+    }
+
+    /** OAuth sign the request and its redirects, wherever they are to host */
+    public Request sign(OAuthConsumer consumer, String host) {
+        m_signer   = consumer;
+        m_signHost = host;
+        return this;
+    }
+
+    public Request followRedirects(boolean follow) {
+        m_followRedirects = follow;
+        return this;
+    }
+
+    public URL getUrl() {
+        return m_url;
+    }
+
+    public String getMethod() {
+        return m_method;
+    }
+
+    public Map<String, String> getHeaders() {
+        return m_headers;
+    }
+
+    public Body getBody() {
+        return m_body;
+    }
+
+    public boolean getFollowRedirects() {
+        return m_followRedirects;
+    }
+
+    /** The consumer to sign a request to url with, or null */
+    public OAuthConsumer getSigner(URL url) {
+        return m_signer != null && url.getHost().equalsIgnoreCase(m_signHost) ? m_signer : null;
+    }
+
+    @Override
+    public String toString() {
+        return m_method + " " + m_url;
+    }
+}
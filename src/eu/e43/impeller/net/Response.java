@@ -0,0 +1,52 @@
+package eu.e43.impeller.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import eu.e43.impeller.Utils;
+
+/**
+ * The response to a Request.
+ *
+ * The body is streamed, already decoded, and is the error body for error statuses. Close the
+ * response (reading the body through readString() or readBytes() does so) so that its
+ * connection can be reused.
+ */
+public abstract class Response {
+    /** The URL which answered, after any redirects */
+    public abstract URL getUrl();
+
+    public abstract int getStatus();
+
+    /** The value of the named header, or null */
+    public abstract String getHeader(String name);
+
+    /** Length of the body as sent on the wire, or -1 if unknown */
+    public abstract long getContentLength();
+
+    public abstract InputStream getBody() throws IOException;
+
+    public abstract void close();
+
+    public boolean isSuccessful() {
+        int status = getStatus();
+        return status >= 200 && status < 300;
+    }
+
+    public String readString() throws IOException {
+        try {
+            return Utils.readAll(getBody());
+        } finally {
+            close();
+        }
+    }
+
+    public byte[] readBytes() throws IOException {
+        try {
+            return Utils.readAllBytes(getBody());
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package eu.e43.impeller.net;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Random;
+
+import eu.e43.impeller.Metrics;
+
+/**
+ * Tracks the health of each host, retrying and failing fast on top of another Transport.
+ *
+ * Requests without a body are retried after network failures and overload responses, after a
+ * random delay of up to an exponentially growing limit. Timeouts are not retried: a host which
+ * has hung would otherwise hold the caller for a full timeout per attempt. After several consecutive failures a
+ * host's circuit breaker opens: requests to it fail at once with HostUnavailableException for
+ * a jittered, growing cool-down (or as long as a Retry-After header asks). Then one request
+ * is let through as a probe; it closes the breaker if it succeeds.
+ */
+public class RetryingTransport extends Transport {
+    private static final String TAG = "RetryingTransport";
+
+    private static final int  MAX_RETRIES       = 2;
+    private static final long RETRY_BASE        = 1000;
+    private static final long RETRY_CAP         = 8 * 1000;
+
+    private static final int  FAILURE_THRESHOLD = 3;
+    private static final long COOLDOWN_BASE     = 15 * 1000;
+    private static final long COOLDOWN_CAP      = 10 * 60 * 1000;
+
+    private static class Host {
+        int     failures;
+        int     trips;
+        long    openUntil;  // elapsedRealtime; 0 while closed
+        boolean probing;
+    }
+
+    private final Transport             m_transport;
+    private final HashMap<String, Host> m_hosts  = new HashMap<String, Host>();
+    private final Random                m_random = new Random();
+    private final long                  m_retryBase;
+    private final long                  m_cooldownBase;
+
+    public RetryingTransport(Transport transport) {
+        this(transport, RETRY_BASE, COOLDOWN_BASE);
+    }
+
+    /** With shorter delays, for tests */
+    RetryingTransport(Transport transport, long retryBase, long cooldownBase) {
+        m_transport    = transport;
+        m_retryBase    = retryBase;
+        m_cooldownBase = cooldownBase;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        String host = request.getUrl().getHost();
+        boolean retryable = request.getBody() == null;
+
+        for(int attempt = 0; ; attempt++) {
+            checkAvailable(host);
+
+            Response    res     = null;
+            IOException error   = null;
+            boolean     settled = false;
+            try {
+                res = m_transport.execute(request);
+                settled = true;
+            } catch(IOException e) {
+                error = e;
+                settled = true;
+            } finally {
+                // Anything else (e.g. a RuntimeException while signing) says nothing about the
+                // host, but mustn't leave it waiting forever for a probe to finish
+                if(!settled)
+                    abandoned(host);
+            }
+
+            if(error != null) {
+                failed(host, 0);
+                if(!retryable || error instanceof SocketTimeoutException
+                        || attempt == MAX_RETRIES)
+                    throw error;
+                Log.w(TAG, "Retrying " + request + " after " + error);
+                backOff(attempt);
+                continue;
+            }
+
+            if(!isOverloaded(res.getStatus())) {
+                succeeded(host);
+                return res;
+            }
+
+            failed(host, getRetryAfter(res));
+            if(!retryable || attempt == MAX_RETRIES)
+                return res;
+            res.close();
+            Log.w(TAG, "Retrying " + request + " after status " + res.getStatus());
+            backOff(attempt);
+        }
+    }
+
+    private static boolean isOverloaded(int status) {
+        switch(status) {
+            case 429: // Too many requests
+            case HttpURLConnection.HTTP_BAD_GATEWAY:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+            case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /** The Retry-After of res in milliseconds, if given in seconds, or 0 */
+    private static long getRetryAfter(Response res) {
+        String retryAfter = res.getHeader("Retry-After");
+        if(retryAfter == null)
+            return 0;
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch(NumberFormatException e) {
+            // An HTTP date; our own cool-down will do
+            return 0;
+        }
+    }
+
+    private void backOff(int attempt) throws InterruptedIOException {
+        long limit = Math.min(RETRY_CAP, m_retryBase << attempt);
+        long delay = (long) (m_random.nextDouble() * limit);
+
+        Metrics.increment("http.retries");
+        try {
+            Thread.sleep(delay);
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+
+    private synchronized void checkAvailable(String host) throws HostUnavailableException {
+        Host h = m_hosts.get(host);
+        if(h == null || h.openUntil == 0)
+            return;
+
+        long now = SystemClock.elapsedRealtime();
+        if(now < h.openUntil || h.probing) {
+            Metrics.increment("http.failedFast");
+            throw new HostUnavailableException(host,
+                    System.currentTimeMillis() + Math.max(0, h.openUntil - now));
+        }
+
+        // Half open: this request is the probe
+        h.probing = true;
+    }
+
+    private synchronized void succeeded(String host) {
+        if(m_hosts.remove(host) != null)
+            Log.i(TAG, host + " is available");
+    }
+
+    /** A request to host ended without an answer either way */
+    private synchronized void abandoned(String host) {
+        Host h = m_hosts.get(host);
+        if(h != null)
+            h.probing = false;
+    }
+
+    private synchronized void failed(String host, long retryAfter) {
+        Host h = m_hosts.get(host);
+        if(h == null) {
+            h = new Host();
+            m_hosts.put(host, h);
+        }
+
+        h.failures++;
+        if(h.failures < FAILURE_THRESHOLD && !h.probing && retryAfter == 0)
+            return;
+
+        // Open (or reopen) the breaker, for the cool-down with between 50% and 100% jitter
+        long cooldown = Math.min(COOLDOWN_CAP, m_cooldownBase << Math.min(h.trips, 16));
+        cooldown = cooldown / 2 + (long) (m_random.nextDouble() * cooldown / 2);
+        cooldown = Math.max(cooldown, retryAfter);
+
+        h.trips++;
+        h.probing   = false;
+        h.openUntil = SystemClock.elapsedRealtime() + cooldown;
+        Metrics.increment("http.breakerTrips");
+        Log.w(TAG, host + " is unavailable; failing fast for " + cooldown / 1000 + "s");
+    }
+}
@@ -0,0 +1,27 @@
+package eu.e43.impeller.net;
+
+import java.io.IOException;
+
+/**
+ * Executes HTTP requests. All of Impeller's network traffic goes through Transport.get(), so
+ * timeouts, connection reuse, signing and metrics are configured in one place (HttpTransport),
+ * as is the handling of failing hosts (RetryingTransport), and the network can be replaced by
+ * a MockTransport.
+ */
+public abstract class Transport {
+    private static Transport ms_transport;
+
+    public static synchronized Transport get() {
+        if(ms_transport == null)
+            ms_transport = new RetryingTransport(new HttpTransport());
+        return ms_transport;
+    }
+
+    /** Replace the transport, e.g. with a MockTransport; null restores the default */
+    public static synchronized void set(Transport transport) {
+        ms_transport = transport;
+    }
+
+    /** Execute request. Fails only if no response was received; error statuses are returned */
+    public abstract Response execute(Request request) throws IOException;
+}
@@ -4,15 +4,19 @@ import org.htmlcleaner.HtmlCleaner;
 import org.htmlcleaner.TagNode;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import eu.e43.impeller.net.Request;
+import eu.e43.impeller.net.Response;
+import eu.e43.impeller.net.Transport;
+
 /**
  * A Java object representation of an Open Graph enabled webpage.
  * A simplified layer over a Hastable.
@@ -71,10 +75,13 @@ public class OpenGraph
 
         // download the (X)HTML content, but only up to the closing head tag. We do not want to waste resources parsing irrelevant content
         URL pageURL = new URL(url);
-        URLConnection siteConnection = pageURL.openConnection();
-        siteConnection.setRequestProperty("User-Agent", "E43 Impeller");
-        Charset charset = getConnectionCharset(siteConnection);
-        BufferedReader dis = new BufferedReader(new InputStreamReader(siteConnection.getInputStream(), charset));
+        Response res = Transport.get().execute(new Request(pageURL));
+        if(!res.isSuccessful()) {
+            res.close();
+            throw new IOException("Server returned " + res.getStatus() + " for " + url);
+        }
+        Charset charset = getConnectionCharset(res.getHeader("Content-Type"));
+        BufferedReader dis = new BufferedReader(new InputStreamReader(res.getBody(), charset));
         String inputLine;
         StringBuffer headContents = new StringBuffer();
 
@@ -90,6 +97,7 @@ public class OpenGraph
             }
             headContents.append(inputLine + "\r\n");
         }
+        res.close();
 
         String headContentsStr = headContents.toString();
         HtmlCleaner cleaner = new HtmlCleaner();
@@ -186,21 +194,20 @@ public class OpenGraph
         }
 
         // read the original page url
-        URL realURL = siteConnection.getURL();
+        URL realURL = res.getUrl();
         pageUrl = realURL.toExternalForm();
     }
 
     /**
-     * Gets the charset for specified connection.
+     * Gets the charset of a response.
      * Content Type header is parsed to get the charset name.
      *
-     * @param connection the connection.
+     * @param contentType the Content-Type header, or null.
      * @return the Charset object for response charset name;
      *         if it's not found then the default charset.
      */
-    private static Charset getConnectionCharset(URLConnection connection)
+    private static Charset getConnectionCharset(String contentType)
     {
-        String contentType = connection.getContentType();
         if (contentType != null && contentType.length() > 0)
         {
             contentType = contentType.toLowerCase();
@@ -18,7 +18,12 @@ package eu.e43.impeller.uikit;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.text.Html;
 import android.support.v4.util.LruCache;
 import android.view.LayoutInflater;
@@ -30,6 +35,7 @@ import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import eu.e43.impeller.R;
@@ -46,6 +52,11 @@ public class ActivityAdapter extends BaseAdapter {
     private static final int FIELD_LIKES   = 4;
     private static final int FIELD_SHARES  = 5;
 
+    /** Number of rows paged in at a time in windowed mode */
+    public static final int PAGE_SIZE = 50;
+    /* Pages either side of the one being displayed which are kept open */
+    private static final int RETAINED_PAGES = 2;
+
     Cursor                      m_cursor;
 	ActivityWithAccount m_ctx;
     int m_lastScannedObjectPosition;
@@ -53,33 +64,247 @@ public class ActivityAdapter extends BaseAdapter {
     HashMap<String, Integer>    m_objectPositions = new HashMap<String, Integer>();
     LruCache<Integer, JSONObject> m_objects = new LruCache<Integer, JSONObject>(32);
 
+    /* Windowed mode. m_cursor (from the caller's loader) holds the newest rows; the older
+     * ones are paged in below it with keyset queries as the list scrolls */
+    private static class Page {
+        Cursor  cursor;     // null while dropped
+        int     count;
+        long    firstRowId; // newest row
+        long    lastRowId;  // oldest row
+        PageTask reload;    // Reloading it, while dropped
+    }
+
+    ContentResolver             m_resolver;
+    Uri                         m_pageUri;
+    String[]                    m_projection;
+    String                      m_selection;
+    String[]                    m_selectionArgs;
+    String                      m_sortOrder;
+    ArrayList<Page>             m_pages         = new ArrayList<Page>();
+    long                        m_firstPageFloor = -1;
+    boolean                     m_exhausted;
+    PageTask                    m_pageTask;
+
 	public ActivityAdapter(ActivityWithAccount ctx) {
 		m_cursor = null;
 		m_ctx  = ctx;
 	}
 
+    /** Page in rows older than those of the cursor passed to updateCursor, as the list
+     *  scrolls towards them.
+     *
+     * The URI must support keyset pagination (?before=&lt;_ID&gt;&amp;limit=&lt;n&gt;, as the
+     * provider's feed URIs do) and the query must be the one the cursor came from, ordered by
+     * descending _ID.
+     */
+    public void enableWindowing(Uri uri, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder) {
+        m_resolver      = m_ctx.getContentResolver();
+        m_pageUri       = uri;
+        m_projection    = projection;
+        m_selection     = selection;
+        m_selectionArgs = selectionArgs;
+        m_sortOrder     = sortOrder;
+    }
+
+    /** The _ID of the oldest row of the cursor passed to updateCursor, or -1 if it is empty.
+     *  Queries for the rows with _IDs from this one up keep later pages valid */
+    public long getFirstPageFloor() {
+        return m_firstPageFloor;
+    }
+
     public int findItemById(String id) {
         Integer pos = m_objectPositions.get(id);
         if(pos == null) {
-            if(m_cursor == null) return -1;
-
-            if(!m_cursor.moveToPosition(m_lastScannedObjectPosition))
-                return -1;
+            int count = getCount();
+            for(pos = m_lastScannedObjectPosition; pos < count; pos++) {
+                Cursor c = moveToPosition(pos);
+                if(c == null) {
+                    // Its page is being reloaded; carry on from here next time
+                    break;
+                }
 
-            do {
-                String objId = m_cursor.getString(FIELD_ID);
-                pos = m_cursor.getPosition();
-                m_objectPositions.put(id, pos);
+                String objId = c.getString(FIELD_ID);
+                m_objectPositions.put(objId, pos);
                 m_lastScannedObjectPosition = pos;
 
                 if(id.equals(objId)) {
                     return pos;
                 }
-            } while(m_cursor.moveToNext());
+            }
             return -1;
         } else return pos;
     }
 
+    /** The cursor holding the row at position, moved to it, or null if it isn't available
+     *  yet. In windowed mode, a dropped page is reloaded in the background when required */
+    private Cursor moveToPosition(int position) {
+        if(m_cursor == null)
+            return null;
+
+        int first = m_cursor.getCount();
+        if(position < first)
+            return m_cursor.moveToPosition(position) ? m_cursor : null;
+
+        position -= first;
+        for(Page page : m_pages) {
+            if(position < page.count) {
+                if(page.cursor == null) {
+                    if(page.reload == null) {
+                        page.reload = new PageTask(page);
+                        page.reload.start();
+                    }
+                    return null;
+                }
+                return page.cursor != null && page.cursor.moveToPosition(position)
+                        ? page.cursor : null;
+            }
+            position -= page.count;
+        }
+        return null;
+    }
+
+    private Cursor queryPage(long before, int limit) {
+        Uri uri = m_pageUri.buildUpon()
+                .appendQueryParameter("before", String.valueOf(before))
+                .appendQueryParameter("limit",  String.valueOf(limit))
+                .build();
+        return m_resolver.query(uri, m_projection, m_selection, m_selectionArgs, m_sortOrder);
+    }
+
+    /** Fetch the next page if position is getting close to the end of those loaded, and close
+     *  those far away from it */
+    private void updateWindow(int position) {
+        if(m_resolver == null || m_cursor == null)
+            return;
+
+        int count = getCount();
+        if(!m_exhausted && m_pageTask == null && position >= count - PAGE_SIZE / 2) {
+            long before = m_pages.isEmpty()
+                    ? getFirstPageFloor()
+                    : m_pages.get(m_pages.size() - 1).lastRowId;
+
+            if(before < 0 || (m_pages.isEmpty() && m_cursor.getCount() < PAGE_SIZE)) {
+                m_exhausted = true;
+            } else {
+                m_pageTask = new PageTask(before);
+                m_pageTask.start();
+            }
+        }
+
+        int first = m_cursor.getCount();
+        int current = position < first ? -1 : (position - first) / PAGE_SIZE;
+        for(int i = 0; i < m_pages.size(); i++) {
+            Page page = m_pages.get(i);
+            if(page.cursor != null && Math.abs(i - current) > RETAINED_PAGES) {
+                page.cursor.close();
+                page.cursor = null;
+            }
+        }
+    }
+
+    private void closePages() {
+        if(m_pageTask != null) {
+            m_pageTask.cancel(false);
+            m_pageTask = null;
+        }
+
+        for(Page page : m_pages) {
+            if(page.reload != null)
+                page.reload.cancel(false);
+            if(page.cursor != null)
+                page.cursor.close();
+        }
+        m_pages.clear();
+        m_exhausted = false;
+    }
+
+    /** Queries the page after the last, or reloads a dropped page */
+    private class PageTask extends AsyncTask<Void, Void, Cursor> {
+        private final long m_before;
+        private final int  m_limit;
+        private final Page m_page;
+
+        PageTask(long before) {
+            m_before = before;
+            m_limit  = PAGE_SIZE;
+            m_page   = null;
+        }
+
+        PageTask(Page page) {
+            m_before = page.firstRowId + 1;
+            m_limit  = page.count;
+            m_page   = page;
+        }
+
+        /** Run on the thread pool. From Honeycomb, execute() runs every AsyncTask in the app
+         *  one at a time, so a page could wait behind a slow post or login */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        void start() {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+                executeOnExecutor(THREAD_POOL_EXECUTOR);
+            else
+                execute();
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... voids) {
+            Cursor c = queryPage(m_before, m_limit);
+            if(c != null)
+                c.getCount(); // Fill the window here, rather than on the UI thread
+            return c;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor c) {
+            if(m_page != null) {
+                reloaded(c);
+                return;
+            }
+
+            if(m_pageTask != this) {
+                // Superseded by a new first page
+                if(c != null) c.close();
+                return;
+            }
+            m_pageTask = null;
+
+            if(c == null || c.getCount() == 0) {
+                m_exhausted = true;
+                if(c != null) c.close();
+                return;
+            }
+
+            Page page = new Page();
+            page.cursor = c;
+            page.count  = c.getCount();
+            c.moveToFirst();
+            page.firstRowId = c.getLong(FIELD_ROWID);
+            c.moveToLast();
+            page.lastRowId  = c.getLong(FIELD_ROWID);
+
+            m_pages.add(page);
+            m_exhausted = page.count < PAGE_SIZE;
+            notifyDataSetChanged();
+        }
+
+        private void reloaded(Cursor c) {
+            if(m_page.reload != this) {
+                // The pages have been closed since
+                if(c != null) c.close();
+                return;
+            }
+            m_page.reload = null;
+            m_page.cursor = c;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        protected void onCancelled(Cursor c) {
+            if(c != null) c.close();
+        }
+    }
+
     private static class Wrapper extends FrameLayout implements Checkable {
         private boolean m_checked = false;
 
@@ -113,12 +338,20 @@ public class ActivityAdapter extends BaseAdapter {
     public void updateCursor(Cursor c) {
         if(m_cursor != null && m_cursor != c) m_cursor.close();
         m_cursor = c;
+
+        // Later pages follow on from the oldest row of the first
+        long floor = c != null && c.moveToLast() ? c.getLong(FIELD_ROWID) : -1;
+        if(floor != m_firstPageFloor || c == null)
+            closePages();
+        m_firstPageFloor = floor;
+
         m_lastScannedObjectPosition = 0;
         m_objectPositions.clear();
         notifyDataSetChanged();
     }
 	
 	public void close() {
+        closePages();
         if(m_cursor != null)
             m_cursor.close();
 		m_cursor = null;
@@ -126,28 +359,36 @@ public class ActivityAdapter extends BaseAdapter {
 
 	@Override
 	public int getCount() {
-        if(m_cursor != null)
-		    return m_cursor.getCount();
-        else
+        if(m_cursor == null)
             return 0;
+
+        int count = m_cursor.getCount();
+        for(Page page : m_pages)
+            count += page.count;
+        return count;
 	}
 
 	@Override
 	public Object getItem(int position) {
-        m_cursor.moveToPosition(position);
-        int id = m_cursor.getInt(FIELD_ROWID);
+        Cursor c = moveToPosition(position);
+        if(c == null) {
+            // A placeholder, while its page is reloaded (or if it came back short)
+            return new JSONObject();
+        }
+
+        int id = c.getInt(FIELD_ROWID);
 
         JSONObject act = m_objects.get(id);
         if(act != null) {
             return act;
         } else {
             try {
-                m_objectPositions.put(m_cursor.getString(FIELD_ID), position);
+                m_objectPositions.put(c.getString(FIELD_ID), position);
 
-                act = new JSONObject(m_cursor.getString(FIELD_JSON));
-                act.put("_replies", m_cursor.getInt(FIELD_REPLIES));
-                act.put("_likes",   m_cursor.getInt(FIELD_LIKES));
-                act.put("_shares",  m_cursor.getInt(FIELD_SHARES));
+                act = new JSONObject(c.getString(FIELD_JSON));
+                act.put("_replies", c.getInt(FIELD_REPLIES));
+                act.put("_likes",   c.getInt(FIELD_LIKES));
+                act.put("_shares",  c.getInt(FIELD_SHARES));
 
                 m_objects.put(id, act);
                 return act;
@@ -199,6 +440,8 @@ public class ActivityAdapter extends BaseAdapter {
 	
 	@Override
 	public View getView(int position, View v, ViewGroup parent) {
+        updateWindow(position);
+
 	    JSONObject json = (JSONObject) getItem(position);
 	    int type = getItemViewType(json);
 
@@ -214,6 +457,13 @@ public class ActivityAdapter extends BaseAdapter {
                 AvatarView targetUserAvatar = (AvatarView) v.findViewById(R.id.targetUserAvatar);
                 targetUserAvatar.setVisibility(View.GONE);
 
+                if(json.length() == 0) {
+                    // Placeholder
+                    description.setText("");
+                    m_ctx.getImageLoader().setImage(actorAvatar, (String) null);
+                    break;
+                }
+
                 PumpHtml.setFromHtml(m_ctx, description, ActivityUtils.localizedDescription(m_ctx, json));
                 ImageLoader ldr = m_ctx.getImageLoader();
                 try {
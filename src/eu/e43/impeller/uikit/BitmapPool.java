@@ -0,0 +1,142 @@
+package eu.e43.impeller.uikit;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import eu.e43.impeller.Metrics;
+
+/**
+ * Bitmaps nobody is using any more, kept for BitmapFactory to decode into (inBitmap) instead
+ * of allocating new ones, which spares the garbage collector while the feed scrolls.
+ *
+ * Before KitKat a bitmap can only be reused for an image of exactly its dimensions, so the
+ * size classes are dimensions; from KitKat on, any bitmap with enough memory will do, so the
+ * size classes are powers of two bytes. At most budget bytes are kept, dropping the longest
+ * pooled bitmaps first. Reuse needs Honeycomb; before that the pool is always empty.
+ *
+ * Hits, misses and evictions are counted in Metrics as "bitmapPool.*".
+ */
+class BitmapPool {
+    private final long m_budget;
+    private long       m_size;
+
+    private final HashMap<String, ArrayList<Bitmap>> m_classes = new HashMap<String, ArrayList<Bitmap>>();
+    /* Least recently pooled first */
+    private final LinkedList<Bitmap>                 m_order   = new LinkedList<Bitmap>();
+
+    BitmapPool(long budget) {
+        m_budget = budget;
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /** A mutable bitmap which can hold width x height pixels of config, or null */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if(!isSupported())
+            return null;
+
+        ArrayList<Bitmap> bitmaps = m_classes.get(getSizeClass(width, height, config));
+        if(bitmaps == null || bitmaps.isEmpty()) {
+            Metrics.increment("bitmapPool.misses");
+            return null;
+        }
+
+        Bitmap bmp = bitmaps.remove(bitmaps.size() - 1);
+        m_order.remove(bmp);
+        m_size -= getSize(bmp);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            reconfigure(bmp, width, height, config);
+
+        Metrics.increment("bitmapPool.hits");
+        return bmp;
+    }
+
+    /** Offer bmp for reuse. Returns false if it can't be reused; it is the caller's again */
+    synchronized boolean put(Bitmap bmp) {
+        if(!isSupported() || !bmp.isMutable() || bmp.isRecycled() || bmp.getConfig() == null)
+            return false;
+
+        String sizeClass = getSizeClass(bmp);
+        ArrayList<Bitmap> bitmaps = m_classes.get(sizeClass);
+        if(bitmaps == null) {
+            bitmaps = new ArrayList<Bitmap>();
+            m_classes.put(sizeClass, bitmaps);
+        }
+        bitmaps.add(bmp);
+        m_order.add(bmp);
+        m_size += getSize(bmp);
+        Metrics.increment("bitmapPool.puts");
+
+        while(m_size > m_budget && !m_order.isEmpty()) {
+            Bitmap eldest = m_order.removeFirst();
+            m_classes.get(getSizeClass(eldest)).remove(eldest);
+            m_size -= getSize(eldest);
+            Metrics.increment("bitmapPool.evictions");
+        }
+        return true;
+    }
+
+    /** The size class of a request */
+    private static String getSizeClass(int width, int height, Bitmap.Config config) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // The smallest class whose every member is large enough
+            long bytes = (long) width * height * getBytesPerPixel(config);
+            long sizeClass = 1;
+            while(sizeClass < bytes)
+                sizeClass <<= 1;
+            return String.valueOf(sizeClass);
+        } else {
+            return width + "x" + height + ":" + config;
+        }
+    }
+
+    /** The size class of a pooled bitmap */
+    private static String getSizeClass(Bitmap bmp) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // The largest class it is large enough for
+            long bytes = getSize(bmp);
+            long sizeClass = 1;
+            while(sizeClass * 2 <= bytes)
+                sizeClass <<= 1;
+            return String.valueOf(sizeClass);
+        } else {
+            return bmp.getWidth() + "x" + bmp.getHeight() + ":" + bmp.getConfig();
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch(config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    private static long getSize(Bitmap bmp) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return getAllocationByteCount(bmp);
+        else
+            return (long) bmp.getRowBytes() * bmp.getHeight();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static long getAllocationByteCount(Bitmap bmp) {
+        return bmp.getAllocationByteCount();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bmp, int width, int height, Bitmap.Config config) {
+        bmp.reconfigure(width, height, config);
+    }
+}
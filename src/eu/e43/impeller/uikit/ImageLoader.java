@@ -1,27 +1,43 @@
 package eu.e43.impeller.uikit;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.accounts.Account;
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.support.v4.util.LruCache;
 import android.view.Display;
@@ -31,22 +47,77 @@ import android.widget.ImageView;
 
 import com.google.common.collect.MapMaker;
 
+import eu.e43.impeller.Metrics;
 import eu.e43.impeller.R;
-import eu.e43.impeller.Utils;
 import eu.e43.impeller.account.OAuth;
+import eu.e43.impeller.net.DiskCache;
+import eu.e43.impeller.net.Response;
 import eu.e43.impeller.uikit.AvatarView;
 
+/**
+ * Loads images, decoded to the size they are needed at.
+ *
+ * Requests give the largest edge the image will be shown at (setImage() and friends take it
+ * from the view). That is rounded up to a size bucket, a power of two, and the image is
+ * decoded with an inSampleSize and then scaled to fit the bucket. The memory caches are
+ * keyed by (URI, bucket), and a request is also satisfied by a larger bucket already in
+ * memory. The disk cache holds the original bytes, from which any bucket can be decoded.
+ * Downloads are streamed straight into it and decoded from the file, so the compressed image
+ * is never held on the heap; one the cache fails to store is decoded from the network instead.
+ *
+ * Bitmaps are decoded into bitmaps from a BitmapPool where possible. A bitmap goes back to
+ * the pool once it has left the memory cache and no view we put it in still shows it. A
+ * bitmap handed to a Listener of load(), or from getCachedImage(), may be kept anywhere, so
+ * it is never pooled.
+ *
+ * Fetches run on a few background threads, most recently requested first, since while the
+ * feed is flung the newest rows are the ones on screen. Each view is bound to the image it
+ * should show in a weak registry; rebinding a view withdraws its earlier request, and a
+ * fetch which is still queued when nobody wants it any more is dropped.
+ */
 public class ImageLoader {
 	static final String TAG = "ImageLoader";
+
+    /** The smallest size bucket */
+    private static final int MIN_BUCKET = 64;
+
+    /** How much of an uncached download can be read for its bounds and decoded again */
+    private static final int STREAM_MARK_LIMIT = 64 * 1024;
+
 	private Context m_ctx;
 	private Account m_account;
-    // Largest edge of display (i.e. bigger of width/height)
-    //private int m_largestEdge;
-
-    private static ExecutorService ms_threadpool;
-    private static HashMap<URI, FetchTask> ms_tasks = new HashMap<URI, FetchTask>();
-    // Needed to prevent issues when a ListView/etc recycles a View
-    private static HashMap<View, URI> ms_viewUris = new HashMap<View, URI>();
+    // Largest edge of display (i.e. bigger of width/height); no image is decoded larger
+    private int m_largestEdge;
+
+    private static final int  THREADS    = 4;
+    private static final long KEEP_ALIVE = 30;
+
+    private static final Handler            ms_handler  = new Handler(Looper.getMainLooper());
+    private static final AtomicLong         ms_sequence = new AtomicLong();
+    private static final ThreadPoolExecutor ms_executor = createExecutor();
+
+    /* In flight fetches, by getKey(). Used on the main thread */
+    private static HashMap<String, FetchTask> ms_tasks = new HashMap<String, FetchTask>();
+    // What each view should show (needed when a ListView/etc recycles a View)
+    private static final Map<View, Binding> ms_bindings
+            = Collections.synchronizedMap(new WeakHashMap<View, Binding>());
+
+    /** What a view is bound to */
+    private static class Binding {
+        URI            uri;        // Being loaded into the view; null once done
+        FetchTask      task;       // Loading it, if it wasn't already in memory
+        Listener       listener;   // Registered with task
+        PooledDrawable displayed;  // What the view shows of ours
+
+        /** Withdraw the request for uri */
+        void cancel() {
+            if(task != null)
+                task.removeListener(listener);
+            uri      = null;
+            task     = null;
+            listener = null;
+        }
+    }
 
 
 	public interface Listener {
@@ -58,40 +129,63 @@ public class ImageLoader {
 		m_ctx       = ctx;
 		m_account	= acct;
 
-        //Display disp = ctx.getWindowManager().getDefaultDisplay();
-        //Point size = new Point();
-
-        //disp.getSize(size);
-        //m_largestEdge = size.x > size.y ? size.x : size.y;
+        DisplayMetrics dm = ctx.getResources().getDisplayMetrics();
+        m_largestEdge = Math.max(dm.widthPixels, dm.heightPixels);
 
-        if(ms_threadpool == null) {
-            ms_threadpool = Executors.newCachedThreadPool();
-        }
 	}
+
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+                KEEP_ALIVE, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int m_count = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Image #" + (++m_count));
+            }
+        });
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            allowTimeOut(executor);
+        return executor;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void allowTimeOut(ThreadPoolExecutor executor) {
+        executor.allowCoreThreadTimeOut(true);
+    }
 	
 	// Utility Functions
 	
-	public void setImage(final ImageView view, URI uri) {
+	public void setImage(ImageView view, URI uri) {
+		setImage(view, uri, getTargetSize(view));
+	}
+
+	/** Show uri in view, decoded to fit size pixels (0 for the screen) */
+	public void setImage(final ImageView view, URI uri, int size) {
 		view.setImageDrawable(m_ctx.getResources().getDrawable(R.drawable.ic_image_loading));
-		ms_viewUris.put(view,  uri);
-		load(new Listener() {
+		displayed(view, null);
+		bind(view, uri, size, new Listener() {
 			@Override
 			public void loaded(BitmapDrawable dr, URI uri) {
-				if(uri.equals(ms_viewUris.get(view))) {
+				if(complete(view, uri)) {
 					view.setImageDrawable(dr);
-					ms_viewUris.remove(uri);
+					displayed(view, dr);
 				}
 			}
 
 			@Override
 			public void error(URI uri) {
-                URI viewUri = ms_viewUris.get(view);
-				if(viewUri != null && uri != null && uri.equals(viewUri)) {
+				if(complete(view, uri))
 					view.setImageDrawable(m_ctx.getResources().getDrawable(R.drawable.ic_image_broken));
-					ms_viewUris.remove(uri);
-				}
 			}
-		}, uri);
+		});
 	}
 	
 	public void setImage(ImageView view, String imageUrl) {
@@ -105,26 +199,22 @@ public class ImageLoader {
 	}
 
     public void setImage(final AvatarView view, URI uri) {
-        ms_viewUris.put(view,  uri);
         view.setAvatar(null);
-        load(new Listener() {
+        displayed(view, null);
+        bind(view, uri, getTargetSize(view), new Listener() {
             @Override
             public void loaded(BitmapDrawable dr, URI uri) {
-                URI viewUri = ms_viewUris.get(view);
-                if (viewUri != null && uri != null && uri.equals(viewUri)) {
+                if(complete(view, uri)) {
                     view.setAvatar(dr.getBitmap());
-                    ms_viewUris.remove(uri);
+                    displayed(view, dr);
                 }
             }
 
             @Override
             public void error(URI uri) {
-                URI viewUri = ms_viewUris.get(view);
-                if (viewUri != null && uri != null && uri.equals(viewUri)) {
-                    ms_viewUris.remove(uri);
-                }
+                complete(view, uri);
             }
-        }, uri);
+        });
     }
 
     public void setImage(AvatarView view, String imageUrl) {
@@ -138,26 +228,21 @@ public class ImageLoader {
     }
 
     public void setBackground(final View view, URI uri) {
-        ms_viewUris.put(view,  uri);
-        load(new Listener() {
+        bind(view, uri, getTargetSize(view), new Listener() {
             @Override
             public void loaded(BitmapDrawable dr, URI uri) {
-                URI viewUri = ms_viewUris.get(view);
-                if (viewUri != null && uri != null && uri.equals(viewUri)) {
+                if(complete(view, uri)) {
                     dr.setGravity(Gravity.CENTER | Gravity.FILL);
                     view.setBackgroundDrawable(dr);
-                    ms_viewUris.remove(uri);
+                    displayed(view, dr);
                 }
             }
 
             @Override
             public void error(URI uri) {
-                URI viewUri = ms_viewUris.get(view);
-                if (viewUri != null && uri != null && uri.equals(viewUri)) {
-                    ms_viewUris.remove(uri);
-                }
+                complete(view, uri);
             }
-        }, uri);
+        });
     }
 
     public void setBackground(final View view, String imageUrl) {
@@ -170,8 +255,107 @@ public class ImageLoader {
         setBackground(view, uri);
     }
 
+    private static Binding getBinding(View view) {
+        synchronized(ms_bindings) {
+            Binding b = ms_bindings.get(view);
+            if(b == null) {
+                b = new Binding();
+                ms_bindings.put(view, b);
+            }
+            return b;
+        }
+    }
+
+    /** Bind view to uri, loading it through l, and withdraw what it was bound to before */
+    private void bind(View view, URI uri, int size, Listener l) {
+        Binding b = getBinding(view);
+        b.cancel();
+        b.uri      = uri;
+        b.listener = l;
+        b.task     = load(l, uri, size, false);
+
+        // Already answered (from memory, or with an error for a null URI). The listener holds
+        // the view, so it must not outlive the request, or the view could never be collected
+        if(b.task == null)
+            b.cancel();
+    }
+
+    /** If view is still bound to uri, mark it done and return true */
+    private static boolean complete(View view, URI uri) {
+        Binding b = ms_bindings.get(view);
+        if(b == null || uri == null || !uri.equals(b.uri))
+            return false;
+
+        b.uri      = null;
+        b.task     = null;
+        b.listener = null;
+        return true;
+    }
+
+    /** Record that view now shows dr (or nothing of ours), releasing what it showed before */
+    private static void displayed(View view, BitmapDrawable dr) {
+        PooledDrawable now = dr instanceof PooledDrawable ? (PooledDrawable) dr : null;
+        Binding b = getBinding(view);
+        PooledDrawable before = b.displayed;
+        if(before == now)
+            return;
+
+        b.displayed = now;
+
+        if(now != null)
+            now.setDisplayed(true);
+        if(before != null)
+            before.setDisplayed(false);
+    }
+
+    /** The largest edge view has, or has been asked to be laid out at; 0 if unknown */
+    private static int getTargetSize(View view) {
+        int size = Math.max(view.getWidth(), view.getHeight());
+        if(size <= 0 && view.getLayoutParams() != null) {
+            // MATCH_PARENT and WRAP_CONTENT are negative
+            size = Math.max(view.getLayoutParams().width, view.getLayoutParams().height);
+        }
+        return Math.max(size, 0);
+    }
+
+    /** The bucket which will hold an image wanted at size pixels */
+    private int getBucket(int size) {
+        if(size <= 0 || size > m_largestEdge)
+            size = m_largestEdge;
+
+        int bucket = MIN_BUCKET;
+        while(bucket < size)
+            bucket <<= 1;
+        return bucket;
+    }
+
+    private static String getKey(URI uri, int bucket) {
+        return uri + " " + bucket;
+    }
+
+    /** uri from the memory caches, at bucket or larger */
+    private BitmapDrawable findCached(URI uri, int bucket) {
+        int largest = getBucket(0);
+        for(; bucket <= largest; bucket <<= 1) {
+            String key = getKey(uri, bucket);
+            BitmapDrawable dw = ms_images.get(key);
+            if(dw != null)
+                return dw;
+
+            dw = ms_weakImages.get(key);
+            if(dw != null) {
+                cache(key, dw);
+                return dw;
+            }
+        }
+        return null;
+    }
+
 	public Drawable getCachedImage(URI uri) {
-		return ms_images.get(uri);
+		BitmapDrawable dw = findCached(uri, MIN_BUCKET);
+		if(dw instanceof PooledDrawable)
+			((PooledDrawable) dw).pin();
+		return dw;
 	}
 	
 	public Drawable getCachedImage(String url) {
@@ -186,37 +370,48 @@ public class ImageLoader {
 
     // Raw image loading
 
+    /** Load uri at the size of the screen */
     public void load(Listener l, URI uri) {
+        load(l, uri, 0);
+    }
+
+    /** Load uri, decoded to fit size pixels (0 for the screen) */
+    public void load(Listener l, URI uri, int size) {
+        load(l, uri, size, true);
+    }
+
+    /** @param pin Whether the bitmap may be kept beyond our knowledge, and so never pooled
+     *  @return The fetch l has been added to, or null if it has already been called */
+    private FetchTask load(Listener l, URI uri, int size, boolean pin) {
+        if(pin)
+            l = new PinningListener(l);
+
         if(uri == null) {
             l.error(null);
-            return;
+            return null;
         }
 
-        BitmapDrawable dw = ms_images.get(uri);
+        int bucket = getBucket(size);
+        BitmapDrawable dw = findCached(uri, bucket);
         if(dw != null) {
             l.loaded(dw,  uri);
-            return;
-        }
-
-        dw = ms_weakImages.get(uri);
-        if(dw != null) {
-            ms_images.put(uri, dw);
-            l.loaded(dw, uri);
-            return;
+            return null;
         }
 
-        FetchTask task = ms_tasks.get(uri);
+        String key = getKey(uri, bucket);
+        FetchTask task = ms_tasks.get(key);
         if(task == null) {
-            task = new FetchTask();
-            ms_tasks.put(uri,  task);
+            task = new FetchTask(uri, bucket);
+            ms_tasks.put(key,  task);
             task.m_listeners.add(l);
-            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-                task.executeOnExecutor(ms_threadpool, uri);
-            else
-                task.execute(uri);
+            task.submit();
         } else {
             task.m_listeners.add(l);
+            // Wanted again; move it to the front if it is still waiting
+            if(ms_executor.remove(task))
+                task.submit();
         }
+        return task;
     }
 
     public void load(Listener l, String uri) {
@@ -231,77 +426,156 @@ public class ImageLoader {
         }
     }
 
-	class FetchTask extends AsyncTask<Object, Void, BitmapDrawable> {
-		private URI 			   m_uri;
+	class FetchTask implements Runnable, Comparable<FetchTask> {
+		private final URI 		   m_uri;
+		private final int          m_bucket;
+		private long               m_sequence;
 		public ArrayList<Listener> m_listeners = new ArrayList<Listener>();
-		
+
+		FetchTask(URI uri, int bucket) {
+			m_uri    = uri;
+			m_bucket = bucket;
+		}
+
+		void submit() {
+			m_sequence = ms_sequence.incrementAndGet();
+			ms_executor.execute(this);
+			Metrics.max("images.maxQueued", ms_executor.getQueue().size());
+		}
+
+		/** l no longer wants the image. If nobody does and it hasn't started, drop it */
+		void removeListener(Listener l) {
+			m_listeners.remove(l);
+			if(m_listeners.isEmpty() && ms_executor.remove(this)) {
+				ms_tasks.remove(getKey(m_uri, m_bucket));
+				Metrics.increment("images.cancelled");
+			}
+		}
+
+		/** Most recent first */
 		@Override
-		protected BitmapDrawable doInBackground(Object... params) {
-			m_uri  = (URI) params[0];
+		public int compareTo(FetchTask other) {
+			return m_sequence > other.m_sequence ? -1 : (m_sequence < other.m_sequence ? 1 : 0);
+		}
+
+		@Override
+		public void run() {
+			final BitmapDrawable dw = fetch();
+			ms_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					finished(dw);
+				}
+			});
+		}
+
+		private BitmapDrawable fetch() {
 			try {
 				URL url = m_uri.toURL();
-			
-				HttpURLConnection conn = OAuth.fetchAuthenticated(m_ctx, m_account, url);
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inDensity = 96;
-                opts.inScaled = false;
-
-                byte[] compressed = Utils.readAllBytes(conn.getInputStream());
-                InputStream in = new ByteArrayInputStream(compressed);
-
-                // Get the image bounds
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(in, null, opts);
-
-                // Compute appropriate scale factor
-                //int largestEdge = opts.outWidth > opts.outHeight ? opts.outWidth : opts.outHeight;
-                //opts.inSampleSize = largestEdge / m_largestEdge;
-                opts.inJustDecodeBounds = false;
-
-                // Decode image. If we get OOM, try doubling the scale factor (blurry images are
-                // better than none or crashing)
-                Bitmap bmp = null;
-                int attemptCount = 0;
-                do {
+                String key = m_uri.toString();
+                DiskCache cache = DiskCache.getImageCache(m_ctx);
+
+                // The compressed image is never held on the heap: it is streamed into the disk
+                // cache, and decoded from the file
+                FileInputStream in = cache.get(key);
+                if(in == null) {
+                    Response res = OAuth.fetchAuthenticated(m_ctx, m_account, url);
+                    try {
+                        in = cache.put(key, res.getBody());
+                    } catch(IOException ex) {
+                        // e.g. the cache's partition is full; the image still loads, uncached
+                        Log.w(TAG, "Error caching " + url, ex);
+                        Metrics.increment("images.uncached");
+                    } finally {
+                        res.close();
+                    }
+                }
+
+                Bitmap bmp;
+                if(in != null) {
                     try {
-                        in.reset();
-                        bmp = BitmapFactory.decodeStream(in, null, opts);
-                        break;
-                    } catch(OutOfMemoryError ex) {
-                        attemptCount++;
-
-                        if(opts.inSampleSize <= 1) {
-                            opts.inSampleSize = 2;
-                        } else {
-                            opts.inSampleSize *= 2;
-                        }
+                        bmp = decode(new FileSource(in), m_bucket);
+                    } finally {
+                        in.close();
                     }
-                } while(attemptCount < 5);
+                    if(bmp == null)
+                        cache.remove(key);
+                } else {
+                    ResponseSource source = new ResponseSource(url);
+                    try {
+                        bmp = decode(source, m_bucket);
+                    } finally {
+                        source.close();
+                    }
+                }
 
                 if(bmp == null) {
                     Log.e(TAG, "Error decoding image " + url);
                     return null;
                 }
 
-                BitmapDrawable dw = new BitmapDrawable(m_ctx.getResources(), bmp);
-				//dw.setBounds(0, 0, dw.getIntrinsicWidth(), dw.getIntrinsicHeight());
-				return dw;
+                bmp = scaleToFit(bmp, m_bucket);
+                BitmapDrawable dw = new PooledDrawable(m_ctx.getResources(), bmp, getKey(m_uri, m_bucket));
+                //dw.setBounds(0, 0, dw.getIntrinsicWidth(), dw.getIntrinsicHeight());
+                return dw;
 			} catch(Exception ex) {
 				Log.e(TAG, "Error getting " + m_uri, ex);
 				return null;
 			}
 		}
+
+        /** The image at url straight off the network, for when the disk cache can't take it.
+         *  The bounds are decoded within the stream's mark, and the pixels after a reset; if
+         *  decoding read past the mark, the image is fetched again */
+        private class ResponseSource implements ImageSource {
+            private final URL   m_url;
+            private Response    m_res;
+            private InputStream m_in;
+
+            ResponseSource(URL url) {
+                m_url = url;
+            }
+
+            @Override
+            public Bitmap decode(BitmapFactory.Options opts) throws Exception {
+                if(m_in != null) {
+                    try {
+                        m_in.reset();
+                    } catch(IOException ex) {
+                        close();
+                    }
+                }
+
+                if(m_in == null) {
+                    m_res = OAuth.fetchAuthenticated(m_ctx, m_account, m_url);
+                    m_in  = new BufferedInputStream(m_res.getBody(), STREAM_MARK_LIMIT);
+                    m_in.mark(STREAM_MARK_LIMIT);
+                }
+                return BitmapFactory.decodeStream(m_in, null, opts);
+            }
+
+            void close() {
+                if(m_res != null)
+                    m_res.close();
+                m_res = null;
+                m_in  = null;
+            }
+        }
 		
-		@Override
-		protected void onPostExecute(BitmapDrawable dw) {
-			ms_tasks.remove(m_uri);
+		private void finished(BitmapDrawable dw) {
+			String key = getKey(m_uri, m_bucket);
+			ms_tasks.remove(key);
+
+			// Listeners may rebind views, and so remove themselves
+			ArrayList<Listener> listeners = new ArrayList<Listener>(m_listeners);
+			m_listeners.clear();
 			if(dw != null) {				
-				ms_images.put(m_uri, dw);
-				for(Listener l : m_listeners) {
+				cache(key, dw);
+				for(Listener l : listeners) {
 					l.loaded(dw,  m_uri);
 				}	
 			} else {
-				for(Listener l : m_listeners) {
+				for(Listener l : listeners) {
 					l.error(m_uri);
 				}
 			}
@@ -309,15 +583,206 @@ public class ImageLoader {
 		
 	};
 
+    /** Where an image is decoded from. It is decoded at least twice: bounds, then pixels */
+    interface ImageSource {
+        /** Decode the image, from its start, with opts */
+        Bitmap decode(BitmapFactory.Options opts) throws Exception;
+    }
+
+    /** An image in a file, decoded through its descriptor */
+    static class FileSource implements ImageSource {
+        private final FileInputStream m_file;
+
+        FileSource(FileInputStream file) {
+            m_file = file;
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options opts) throws Exception {
+            m_file.getChannel().position(0);
+            return BitmapFactory.decodeFileDescriptor(m_file.getFD(), null, opts);
+        }
+    }
+
+    /** Decode the image from source, at most as much larger than bucket as it must be, or
+     *  return null if it can't be decoded */
+    static Bitmap decode(ImageSource source, int bucket) throws Exception {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inDensity = 96;
+        opts.inScaled = false;
+
+        // Get the image bounds
+        opts.inJustDecodeBounds = true;
+        source.decode(opts);
+
+        // Subsample as far as we can while staying at least as large as the bucket
+        int largestEdge = opts.outWidth > opts.outHeight ? opts.outWidth : opts.outHeight;
+        opts.inSampleSize = 1;
+        while(largestEdge / (opts.inSampleSize * 2) >= bucket)
+            opts.inSampleSize *= 2;
+        opts.inJustDecodeBounds = false;
+        if(BitmapPool.isSupported())
+            reuseBitmap(opts);
+
+        // Decode image. If we get OOM, try doubling the scale factor (blurry images are
+        // better than none or crashing)
+        Bitmap bmp = null;
+        int attemptCount = 0;
+        do {
+            try {
+                bmp = source.decode(opts);
+                break;
+            } catch(IllegalArgumentException ex) {
+                // The pooled bitmap didn't suit after all
+                if(!BitmapPool.isSupported() || !returnReusedBitmap(opts))
+                    throw ex;
+            } catch(OutOfMemoryError ex) {
+                attemptCount++;
+                if(BitmapPool.isSupported())
+                    returnReusedBitmap(opts);
+
+                if(opts.inSampleSize <= 1) {
+                    opts.inSampleSize = 2;
+                } else {
+                    opts.inSampleSize *= 2;
+                }
+            }
+        } while(attemptCount < 5);
+        return bmp;
+    }
+
+    /** Have BitmapFactory decode the image described by opts into a pooled bitmap, if there
+     *  is one which fits */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void reuseBitmap(BitmapFactory.Options opts) {
+        opts.inMutable = true;
+
+        // Before KitKat, only a bitmap of exactly the image's size will do
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || opts.inSampleSize == 1) {
+            int width  = (opts.outWidth  + opts.inSampleSize - 1) / opts.inSampleSize;
+            int height = (opts.outHeight + opts.inSampleSize - 1) / opts.inSampleSize;
+            opts.inBitmap = ms_pool.get(width, height, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    /** Stop decoding into a pooled bitmap, returning it to the pool. False if there was none */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean returnReusedBitmap(BitmapFactory.Options opts) {
+        if(opts.inBitmap == null)
+            return false;
+
+        ms_pool.put(opts.inBitmap);
+        opts.inBitmap = null;
+        return true;
+    }
+
+    /** bmp, scaled down if need be so that its largest edge is at most edge */
+    private static Bitmap scaleToFit(Bitmap bmp, int edge) {
+        int largestEdge = Math.max(bmp.getWidth(), bmp.getHeight());
+        if(largestEdge <= edge)
+            return bmp;
+
+        float scale = edge / (float) largestEdge;
+        int width  = Math.max(1, Math.round(bmp.getWidth() * scale));
+        int height = Math.max(1, Math.round(bmp.getHeight() * scale));
+        try {
+            Bitmap scaled = ms_pool.get(width, height, Bitmap.Config.ARGB_8888);
+            if(scaled != null)
+                scaled.eraseColor(Color.TRANSPARENT);
+            else
+                scaled = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+            new Canvas(scaled).drawBitmap(bmp, null, new Rect(0, 0, width, height),
+                    new Paint(Paint.FILTER_BITMAP_FLAG));
+            if(!ms_pool.put(bmp))
+                bmp.recycle();
+            return scaled;
+        } catch(OutOfMemoryError ex) {
+            // The subsampled image will do
+            return bmp;
+        }
+    }
+
+    /** Put dw in the memory cache under key */
+    private static void cache(String key, BitmapDrawable dw) {
+        ms_images.put(key, dw);
+        if(dw instanceof PooledDrawable)
+            ((PooledDrawable) dw).setCached(true);
+    }
+
+    /** A decoded image, whose bitmap goes back to the pool once it is neither in the memory
+     *  cache nor shown by any view, unless it has been handed out. Used on the main thread */
+    private static class PooledDrawable extends BitmapDrawable {
+        private final String m_key;
+        private boolean      m_cached;
+        private int          m_displays;
+        private boolean      m_pinned;
+        private boolean      m_pooled;
+
+        PooledDrawable(Resources res, Bitmap bmp, String key) {
+            super(res, bmp);
+            m_key = key;
+        }
+
+        void setCached(boolean cached) {
+            m_cached = cached;
+            if(!cached && !release())
+                ms_weakImages.put(m_key, this);
+        }
+
+        void setDisplayed(boolean displayed) {
+            m_displays += displayed ? 1 : -1;
+            release();
+        }
+
+        /** Never pool the bitmap; it has been handed to code which may keep it */
+        void pin() {
+            m_pinned = true;
+        }
+
+        /** Pool the bitmap if nothing uses it. Returns whether it has been pooled */
+        private boolean release() {
+            if(m_pooled || m_cached || m_displays > 0 || m_pinned)
+                return m_pooled;
+
+            m_pooled = true;
+            ms_weakImages.remove(m_key, this);
+            ms_pool.put(getBitmap());
+            return true;
+        }
+    }
+
+    /** Pins what it is given before passing it on */
+    private static class PinningListener implements Listener {
+        private final Listener m_listener;
+
+        PinningListener(Listener listener) {
+            m_listener = listener;
+        }
+
+        @Override
+        public void loaded(BitmapDrawable dr, URI uri) {
+            if(dr instanceof PooledDrawable)
+                ((PooledDrawable) dr).pin();
+            m_listener.loaded(dr, uri);
+        }
+
+        @Override
+        public void error(URI uri) {
+            m_listener.error(uri);
+        }
+    }
+
     static final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
     static final int cacheSize = maxMemory / 8;
-    static final ConcurrentMap<URI, BitmapDrawable> ms_weakImages = new MapMaker()
+    static final BitmapPool ms_pool = new BitmapPool(maxMemory * 1024L / 16);
+    static final ConcurrentMap<String, BitmapDrawable> ms_weakImages = new MapMaker()
         .weakValues()
         .makeMap();
 
-    static final LruCache<URI, BitmapDrawable> ms_images = new LruCache<URI, BitmapDrawable>(cacheSize) {
+    static final LruCache<String, BitmapDrawable> ms_images = new LruCache<String, BitmapDrawable>(cacheSize) {
         @Override
-        protected int sizeOf(URI key, BitmapDrawable value) {
+        protected int sizeOf(String key, BitmapDrawable value) {
             Bitmap bmp = value.getBitmap();
             if(bmp == null)
                 return 0;
@@ -325,19 +790,23 @@ public class ImageLoader {
             if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                 return bmp.getByteCount() / 1024;
             } else {
-                return bmp.getRowBytes() * bmp.getHeight();
+                return bmp.getRowBytes() * bmp.getHeight() / 1024;
             }
         }
 
         @Override
         protected void entryRemoved(boolean evicted,
-                                    URI key,
+                                    String key,
                                     BitmapDrawable oldValue,
                                     BitmapDrawable newValue) {
-            if(evicted) {
-                ms_weakImages.put(key, oldValue);
+            if(oldValue == newValue)
+                return;
+
+            if(oldValue instanceof PooledDrawable) {
+                // Kept in ms_weakImages while in use, pooled otherwise
+                ((PooledDrawable) oldValue).setCached(false);
             } else {
-                ms_weakImages.put(key, newValue);
+                ms_weakImages.put(key, oldValue);
             }
         }
     };
@@ -2,6 +2,7 @@ package eu.e43.impeller.uikit;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -18,10 +19,12 @@ import org.json.JSONObject;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import eu.e43.impeller.R;
 import eu.e43.impeller.Utils;
 import eu.e43.impeller.activity.ActivityWithAccount;
+import eu.e43.impeller.content.PumpContentProvider;
 
 /**
  * Created by oshepherd on 15/04/2014.
@@ -31,6 +34,7 @@ public class PeopleAdapter extends BaseAdapter implements Filterable {
     LruCache<Integer, JSONObject> m_objCache;
     Cursor                        m_cursor;
     JSONObject[]                  m_people;
+    HashMap<String, Integer>      m_positions = new HashMap<String, Integer>();
     Integer[] m_filterResult;
     ActivityWithAccount           m_context;
     Filter                        m_filter;
@@ -62,6 +66,7 @@ public class PeopleAdapter extends BaseAdapter implements Filterable {
     public JSONObject getFollowersObject() { return m_followersObject; }
 
     public void swapCursor(Cursor crs) {
+        m_positions.clear();
         if(crs == null) {
             m_cursor = null;
             m_people = new JSONObject[0];
@@ -77,7 +82,9 @@ public class PeopleAdapter extends BaseAdapter implements Filterable {
         crs.moveToFirst();
         while(!crs.isAfterLast()) {
             try {
-                m_people[crs.getPosition() + 2] = new JSONObject(crs.getString(1));
+                JSONObject person = new JSONObject(crs.getString(1));
+                m_people[crs.getPosition() + 2] = person;
+                m_positions.put(person.optString("id"), crs.getPosition() + 2);
             } catch (JSONException e) {
                 throw new RuntimeException(e);
             }
@@ -148,6 +155,36 @@ public class PeopleAdapter extends BaseAdapter implements Filterable {
         return convertView;
     }
 
+    /** Whether each of the words starts one of those of the person's name */
+    private static boolean matches(JSONObject peep, String[] constraintWords) {
+        String dispName = peep.optString("displayName");
+        String[] words;
+        if(dispName != null) {
+            words = dispName.split(" ");
+        } else {
+            // Cut off acct:
+            words = new String[] {
+                    peep.optString("id").substring(5)
+            };
+        }
+
+        boolean add = false;
+        for(String constraintWord : constraintWords) {
+            add = false;
+
+            for(String word : words) {
+                if (word.toLowerCase().startsWith(constraintWord)) {
+                    add = true;
+                    break;
+                }
+            }
+
+            if(add == false)
+                break;
+        }
+        return add;
+    }
+
     @Override
     public Filter getFilter() {
         if(m_filter == null) {
@@ -162,38 +199,37 @@ public class PeopleAdapter extends BaseAdapter implements Filterable {
                     String[] constraintWords = constraint.split(" ");
 
                     JSONObject[] peeps = m_people;
+                    HashMap<String, Integer> positions = m_positions;
                     ArrayList<Integer> results = new ArrayList<Integer>();
-                    for(int i = 0; i < peeps.length; i++) {
-                        JSONObject peep = peeps[i];
-
-                        String dispName = peep.optString("displayName");
-                        String[] words;
-                        if(dispName != null) {
-                            words = dispName.split(" ");
-                        } else {
-                            // Cut off acct:
-                            words = new String[] {
-                                    peep.optString("id").substring(5)
-                            };
-                        }
-
-                        boolean add = false;
-                        for(String constraintWord : constraintWords) {
-                            add = false;
 
-                            for(String word : words) {
-                                if (word.toLowerCase().startsWith(constraintWord)) {
-                                    add = true;
-                                    break;
-                                }
-                            }
+                    // The collections aren't stored, so are matched here
+                    for(int i = 0; i < 2 && i < peeps.length; i++) {
+                        if(matches(peeps[i], constraintWords))
+                            results.add(i);
+                    }
 
-                            if(add == false)
-                                break;
-                        }
+                    // Everybody else through the search index, best matches first
+                    Uri uri = Uri.parse(PumpContentProvider.SEARCH_URL).buildUpon()
+                            .appendQueryParameter("q", constraint)
+                            .build();
+                    Cursor c;
+                    try {
+                        c = m_context.getContentResolver().query(uri,
+                                new String[] { "id" }, "objectType='person'", null, null);
+                    } catch(IllegalArgumentException e) {
+                        // Nothing searchable in the constraint
+                        c = null;
+                    }
 
-                        if(add) {
-                            results.add(i);
+                    if(c != null) {
+                        try {
+                            while(c.moveToNext()) {
+                                Integer pos = positions.get(c.getString(0));
+                                if(pos != null)
+                                    results.add(pos);
+                            }
+                        } finally {
+                            c.close();
                         }
                     }
 
@@ -0,0 +1,116 @@
+package eu.e43.impeller.account;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import oauth.signpost.OAuthConsumer;
+import oauth.signpost.basic.DefaultOAuthConsumer;
+import oauth.signpost.basic.UrlStringRequestAdapter;
+import oauth.signpost.http.RequestParameters;
+import oauth.signpost.signature.HmacSha1MessageSigner;
+import oauth.signpost.signature.OAuthMessageSigner;
+
+/**
+ * Signing throughput: a consumer built with signpost's HmacSha1MessageSigner for every request,
+ * as before signers were cached per account, against the shared consumer with a
+ * CachedHmacSigner which OAuth now keeps. No requests are sent.
+ */
+@MediumTest
+public class SigningThroughputTest extends TestCase {
+    private static final String TAG        = "SigningThroughputTest";
+    private static final String URL        = "https://example.com/api/user/test/inbox?count=200";
+    private static final int    SIGNATURES = 2000;
+
+    private static final String CLIENT_ID     = "a8f3e2b1-client";
+    private static final String CLIENT_SECRET = "K2hSx9Qp0vLm3NwZ";
+    private static final String TOKEN         = "t0k3n-4c9d";
+    private static final String TOKEN_SECRET  = "s3cr3t+/=&token";
+
+    private interface Signer {
+        void sign(HttpURLConnection conn) throws Exception;
+    }
+
+    private static OAuthConsumer newConsumer(OAuthMessageSigner signer) {
+        OAuthConsumer consumer = new DefaultOAuthConsumer(CLIENT_ID, CLIENT_SECRET);
+        consumer.setMessageSigner(signer);
+        consumer.setTokenWithSecret(TOKEN, TOKEN_SECRET);
+        return consumer;
+    }
+
+    /** Signatures per second by signer */
+    private static double measure(String name, Signer signer) throws Exception {
+        URL url = new URL(URL);
+
+        // Warm up
+        for(int i = 0; i < SIGNATURES / 10; i++)
+            signer.sign((HttpURLConnection) url.openConnection());
+
+        long start = System.nanoTime();
+        for(int i = 0; i < SIGNATURES; i++) {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            signer.sign(conn);
+            assertNotNull(conn.getRequestProperty("Authorization"));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double rate = SIGNATURES / seconds;
+
+        Log.i(TAG, name + ": " + Math.round(rate) + " signatures/s");
+        return rate;
+    }
+
+    public void testSameSignature() throws Exception {
+        RequestParameters params = new RequestParameters();
+        params.put("oauth_consumer_key",     CLIENT_ID);
+        params.put("oauth_token",            TOKEN);
+        params.put("oauth_nonce",            "8183417734915206917");
+        params.put("oauth_timestamp",        "1388534400");
+        params.put("oauth_signature_method", "HMAC-SHA1");
+        params.put("oauth_version",          "1.0");
+        params.put("count",                  "200");
+
+        OAuthMessageSigner expected = new HmacSha1MessageSigner();
+        OAuthMessageSigner cached   = new CachedHmacSigner();
+        for(OAuthMessageSigner signer : new OAuthMessageSigner[] { expected, cached }) {
+            signer.setConsumerSecret(CLIENT_SECRET);
+            signer.setTokenSecret(TOKEN_SECRET);
+        }
+
+        String signature = expected.sign(new UrlStringRequestAdapter(URL), params);
+        assertEquals(signature, cached.sign(new UrlStringRequestAdapter(URL), params));
+        // Again, with the Mac already keyed
+        assertEquals(signature, cached.sign(new UrlStringRequestAdapter(URL), params));
+
+        // And rekeyed when the token changes
+        expected.setTokenSecret("other");
+        cached.setTokenSecret("other");
+        assertEquals(expected.sign(new UrlStringRequestAdapter(URL), params),
+                cached.sign(new UrlStringRequestAdapter(URL), params));
+    }
+
+    public void testThroughput() throws Exception {
+        double perRequest = measure("New consumer per request", new Signer() {
+            @Override
+            public void sign(HttpURLConnection conn) throws Exception {
+                newConsumer(new HmacSha1MessageSigner()).sign(conn);
+            }
+        });
+
+        final OAuthConsumer cached = newConsumer(new CachedHmacSigner());
+        double shared = measure("Shared consumer, cached Mac", new Signer() {
+            @Override
+            public void sign(HttpURLConnection conn) throws Exception {
+                synchronized(cached) {
+                    cached.sign(conn);
+                }
+            }
+        });
+
+        assertTrue("Cached signing (" + shared + "/s) not faster than per request ("
+                + perRequest + "/s)", shared > perRequest);
+    }
+}
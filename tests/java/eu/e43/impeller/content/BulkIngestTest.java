@@ -0,0 +1,75 @@
+package eu.e43.impeller.content;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+
+/**
+ * Times the ingest of a 1000 activity inbox page, through applyBatch() (one transaction, one
+ * notification) and through separate inserts (a transaction and five notifications each).
+ */
+@LargeTest
+public class BulkIngestTest extends ContentTestCase {
+    private static final String TAG     = "BulkIngestTest";
+    private static final String ACCOUNT = "test@" + SyntheticContent.HOST;
+    private static final int    PAGE    = 1000;
+
+    /** Activities first to first + PAGE - 1, oldest first, as the sync adapter inserts them */
+    private static ArrayList<ContentValues> getPage(int first) throws JSONException {
+        ArrayList<ContentValues> page = new ArrayList<ContentValues>();
+        for(int i = first; i < first + PAGE; i++) {
+            ContentValues values = new ContentValues();
+            values.put("_json", SyntheticContent.activity(i).toString());
+            page.add(values);
+        }
+        return page;
+    }
+
+    private static ArrayList<ContentProviderOperation> getOperations(Uri feed, ArrayList<ContentValues> page) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for(ContentValues values : page)
+            ops.add(ContentProviderOperation.newInsert(feed).withValues(values).build());
+        return ops;
+    }
+
+    public void testBatchedPage() throws Exception {
+        Uri feed = getFeedUri(ACCOUNT);
+        ArrayList<ContentProviderOperation> ops = getOperations(feed, getPage(0));
+
+        long start = SystemClock.elapsedRealtime();
+        m_provider.applyBatch(ops);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Ingested " + PAGE + " activities in one batch in " + elapsed + "ms");
+        assertEquals(PAGE, count(feed));
+        assertEquals(PAGE, count(Uri.parse(PumpContentProvider.ACTIVITY_URL)));
+    }
+
+    public void testBatchedFasterThanSeparate() throws Exception {
+        Uri feed = getFeedUri(ACCOUNT);
+
+        ArrayList<ContentValues> separate = getPage(0);
+        long start = SystemClock.elapsedRealtime();
+        for(ContentValues values : separate)
+            m_provider.insert(feed, values);
+        long separateMillis = SystemClock.elapsedRealtime() - start;
+
+        ArrayList<ContentProviderOperation> batched = getOperations(feed, getPage(PAGE));
+        start = SystemClock.elapsedRealtime();
+        m_provider.applyBatch(batched);
+        long batchedMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Ingested " + PAGE + " activities in " + separateMillis + "ms separately, "
+                + batchedMillis + "ms batched");
+        assertEquals(2 * PAGE, count(feed));
+        assertTrue("Batched ingest (" + batchedMillis + "ms) not faster than separate ("
+                + separateMillis + "ms)", batchedMillis < separateMillis);
+    }
+}
@@ -0,0 +1,83 @@
+package eu.e43.impeller.content;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Reads the provider in a loop while a long batch is ingested, which holds the write
+ * transaction open throughout (it doesn't yield). With write-ahead logging the reads must not
+ * wait for it.
+ */
+@LargeTest
+public class ConcurrentReadTest extends ContentTestCase {
+    private static final String TAG        = "ConcurrentReadTest";
+    private static final int    SEEDED     = 100;
+    private static final int    ACTIVITIES = 3000;
+
+    public void testReadsNotBlockedByIngest() throws Throwable {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // No write-ahead logging: readers wait for the writer
+            return;
+        }
+
+        final Uri activities = Uri.parse(PumpContentProvider.ACTIVITY_URL);
+        final Uri objects    = Uri.parse(PumpContentProvider.OBJECT_URL);
+
+        m_provider.beginBatch();
+        for(int i = 0; i < SEEDED; i++)
+            m_provider.ingest(activities, SyntheticContent.activity(i));
+        m_provider.endBatch(true);
+
+        final CountDownLatch begun   = new CountDownLatch(1);
+        final long[]         window  = new long[2];
+        final Throwable[]    failure = new Throwable[1];
+        Thread writer = new Thread("Writer") {
+            @Override
+            public void run() {
+                boolean successful = false;
+                m_provider.beginBatch();
+                window[0] = SystemClock.elapsedRealtime();
+                begun.countDown();
+                try {
+                    for(int i = SEEDED; i < SEEDED + ACTIVITIES; i++)
+                        m_provider.ingest(activities, SyntheticContent.activity(i));
+                    successful = true;
+                } catch(Throwable t) {
+                    failure[0] = t;
+                } finally {
+                    m_provider.endBatch(successful);
+                    window[1] = SystemClock.elapsedRealtime();
+                }
+            }
+        };
+        writer.start();
+        begun.await();
+
+        int  reads    = 0;
+        long longest  = 0;
+        while(writer.isAlive()) {
+            long start = SystemClock.elapsedRealtime();
+            count(objects);
+            longest = Math.max(longest, SystemClock.elapsedRealtime() - start);
+            reads++;
+        }
+        writer.join();
+        if(failure[0] != null)
+            throw failure[0];
+
+        long writeMillis = window[1] - window[0];
+        Log.i(TAG, reads + " reads during a " + writeMillis + "ms write transaction; longest "
+                + longest + "ms");
+
+        assertTrue("Write transaction too short to test with", writeMillis > 100);
+        assertTrue("Only " + reads + " reads completed", reads > 1);
+        assertTrue("A read took " + longest + "ms of a " + writeMillis + "ms write",
+                longest < writeMillis / 2);
+        assertEquals(SEEDED + ACTIVITIES, count(activities));
+    }
+}
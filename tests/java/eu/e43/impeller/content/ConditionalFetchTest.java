@@ -0,0 +1,119 @@
+package eu.e43.impeller.content;
+
+import android.accounts.Account;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.net.URL;
+import java.util.Collections;
+
+import eu.e43.impeller.Metrics;
+
+/**
+ * Conditional GETs against a stand-in server, and what a 304 is counted as saving.
+ */
+@MediumTest
+public class ConditionalFetchTest extends NetworkTestCase {
+    private static final String PATH = "/api/note/1";
+    private static final String ETAG = "\"v1\"";
+
+    /* Not all ASCII, so that its length in characters and in bytes differ */
+    private static final String BODY = "{\"id\":\"" + SyntheticContent.noteId(1) + "\","
+            + "\"content\":\"Caf\u00e9 \u2615 on the terrace\"}";
+
+    private static long bodyLength() throws Exception {
+        return BODY.getBytes("UTF-8").length;
+    }
+
+    /** The stored length of account's validators for url, or -1 if none are stored */
+    private long getValidatorLength(Account account, String url) {
+        Cursor c = m_provider.query(Uri.parse(PumpContentProvider.VALIDATOR_URL),
+                new String[] { "length" }, "account=? AND url=?",
+                new String[] { account.name, url }, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private ConditionalFetch fetch(String url, int writes) throws Exception {
+        return fetch(m_account, url, writes);
+    }
+
+    /** Fetch and store url as a caller would, returning the fetch */
+    private ConditionalFetch fetch(Account account, String url, int writes) throws Exception {
+        ConditionalFetch fetch = ConditionalFetch.fetch(m_context, account, new URL(url));
+        if(!fetch.notModified) {
+            assertEquals(BODY, fetch.readString());
+            fetch.complete(m_context, writes);
+        }
+        return fetch;
+    }
+
+    private String getLastHeader(String name) {
+        return m_transport.getRequests().get(m_transport.getRequests().size() - 1)
+                .getHeaders().get(name);
+    }
+
+    public void testNotModified() throws Exception {
+        String url = getUrl(PATH);
+        m_transport.respond(url, 200, Collections.singletonMap("ETag", ETAG), BODY);
+
+        ConditionalFetch first = fetch(url, 3);
+        assertFalse(first.notModified);
+        assertNull(getLastHeader("If-None-Match"));
+        assertEquals(bodyLength(), getValidatorLength(m_account, url));
+
+        m_transport.respond(url, 304, Collections.singletonMap("ETag", ETAG), null);
+        long notModified = Metrics.value("http.notModified");
+        long bytesSaved  = Metrics.value("http.bytesSaved");
+        long writesSaved = Metrics.value("db.writesSaved");
+
+        ConditionalFetch second = fetch(url, 3);
+        assertTrue(second.notModified);
+        assertEquals(ETAG, getLastHeader("If-None-Match"));
+
+        // The saving is the body in bytes, as a 200 would have been read
+        assertEquals(1,            Metrics.value("http.notModified") - notModified);
+        assertEquals(bodyLength(), Metrics.value("http.bytesSaved")  - bytesSaved);
+        assertEquals(3,            Metrics.value("db.writesSaved")   - writesSaved);
+    }
+
+    public void testLastModified() throws Exception {
+        String url  = getUrl(PATH);
+        String date = "Wed, 01 Jan 2014 00:00:00 GMT";
+        m_transport.respond(url, 200, Collections.singletonMap("Last-Modified", date), BODY);
+
+        fetch(url, 1);
+        fetch(url, 1);
+        assertEquals(date, getLastHeader("If-Modified-Since"));
+        assertNull(getLastHeader("If-None-Match"));
+    }
+
+    public void testWithoutValidators() throws Exception {
+        String url = getUrl(PATH);
+        m_transport.respond(url, 200, BODY);
+
+        fetch(url, 1);
+        assertEquals(-1, getValidatorLength(m_account, url));
+
+        fetch(url, 1);
+        assertNull(getLastHeader("If-None-Match"));
+        assertNull(getLastHeader("If-Modified-Since"));
+    }
+
+    /** Another account on the same host may see a different document at the same URL */
+    public void testValidatorsArePerAccount() throws Exception {
+        String url = getUrl(PATH);
+        m_transport.respond(url, 200, Collections.singletonMap("ETag", ETAG), BODY);
+        Account other = addAccount("other");
+
+        fetch(url, 1);
+        assertFalse(fetch(other, url, 1).notModified);
+        assertNull(getLastHeader("If-None-Match"));
+        assertEquals(bodyLength(), getValidatorLength(m_account, url));
+        assertEquals(bodyLength(), getValidatorLength(other, url));
+    }
+}
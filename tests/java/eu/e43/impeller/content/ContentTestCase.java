@@ -0,0 +1,54 @@
+package eu.e43.impeller.content;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * A test with a PumpContentProvider of its own, on an empty database, which is reachable
+ * through m_context's content resolver.
+ */
+public abstract class ContentTestCase extends AndroidTestCase {
+    protected TestContext           m_context;
+    protected PumpContentProvider   m_provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_context = new TestContext(getContext());
+        m_context.deleteDatabase(PumpDatabaseHelper.NAME);
+        m_context.getSharedPreferences("PumpContentProvider", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+
+        openProvider();
+    }
+
+    /** Create m_provider, on whatever database there is, and make it reachable */
+    protected void openProvider() {
+        m_provider = new PumpContentProvider();
+        m_provider.attachInfo(m_context, null);
+        m_context.addProvider(PumpContentProvider.AUTHORITY, m_provider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_provider.shutdown();
+        m_context.deleteDatabase(PumpDatabaseHelper.NAME);
+        super.tearDown();
+    }
+
+    protected static Uri getFeedUri(String account) {
+        return Uri.parse(PumpContentProvider.FEED_URL).buildUpon().appendPath(account).build();
+    }
+
+    /** The number of rows a query of uri returns */
+    protected int count(Uri uri) {
+        Cursor c = m_provider.query(uri, new String[] { "_ID" }, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
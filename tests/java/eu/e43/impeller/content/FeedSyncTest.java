@@ -0,0 +1,215 @@
+package eu.e43.impeller.content;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+import eu.e43.impeller.Constants;
+import eu.e43.impeller.net.BandwidthPolicy;
+import eu.e43.impeller.net.Request;
+
+/**
+ * Syncs of an inbox of INBOX activities from a stand-in server, which serves it the way
+ * pump.io does: pages of the activities after ?since=, newest first, linking to the next
+ * newer page as "prev".
+ *
+ * The data saver is off, so each sync fetches up to 10 pages of 200. There is no
+ * ContentProviderClient, so pages are applied through the content resolver.
+ */
+@LargeTest
+public class FeedSyncTest extends NetworkTestCase {
+    private static final int INBOX     = 5000;
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_PAGES = 10;
+
+    private SharedPreferences m_syncState;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_syncState = m_context.getSharedPreferences("FeedSync", Context.MODE_PRIVATE);
+        m_syncState.edit().clear().commit();
+        getPreferences().edit()
+                .putString(Constants.PREF_DATA_SAVER, BandwidthPolicy.SAVER_NEVER).commit();
+
+        // Serve the inbox, and an empty page after its newest activity
+        for(int since = 0; since <= INBOX; since += PAGE_SIZE)
+            m_transport.respond(getPageUrl(since), 200, getPage(since).toString());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_syncState.edit().clear().commit();
+        getPreferences().edit().clear().commit();
+        super.tearDown();
+    }
+
+    private SharedPreferences getPreferences() {
+        return m_context.getSharedPreferences(m_context.getPackageName() + "_preferences",
+                Context.MODE_MULTI_PROCESS);
+    }
+
+    private SyncJournal getJournal() {
+        return new SyncJournal(m_syncState, m_account.name);
+    }
+
+    /** The URL the sync adapter asks for the page after activity since with */
+    private static String getPageUrl(int since) {
+        return Uri.parse(getUrl("/api/user/" + USERNAME + "/inbox")).buildUpon()
+                .appendQueryParameter("since", SyntheticContent.activityId(since))
+                .appendQueryParameter("count", String.valueOf(PAGE_SIZE))
+                .build().toString();
+    }
+
+    /** The page of the inbox after activity since */
+    private static JSONObject getPage(int since) throws Exception {
+        int newest = Math.min(INBOX, since + PAGE_SIZE);
+        JSONArray items = new JSONArray();
+        for(int n = newest; n > since; n--)
+            items.put(SyntheticContent.activity(n));
+
+        JSONObject page = new JSONObject()
+                .put("displayName", "Inbox")
+                .put("totalItems",  INBOX)
+                .put("items",       items);
+        if(newest > since) {
+            String prev = Uri.parse(getUrl("/api/user/" + USERNAME + "/inbox")).buildUpon()
+                    .appendQueryParameter("since", SyntheticContent.activityId(newest))
+                    .build().toString();
+            page.put("links", new JSONObject().put("prev", new JSONObject().put("href", prev)));
+        }
+        return page;
+    }
+
+    /** Runs a sync, as the sync manager would with a fresh adapter */
+    private SyncResult sync() {
+        SyncResult result = new SyncResult();
+        new FeedSyncAdapter(m_context).onPerformSync(m_account, new Bundle(),
+                PumpContentProvider.AUTHORITY, null, result);
+        assertFalse("Database error", result.databaseError);
+        return result;
+    }
+
+    /** Asserts the feed holds activities 1 to last, oldest first, once each */
+    private void assertFeed(int last) {
+        Cursor c = m_provider.query(getFeedUri(m_account.name), new String[] { "id" },
+                null, null, "feed_entries._ID ASC");
+        try {
+            assertEquals(last, c.getCount());
+            for(int n = 1; c.moveToNext(); n++)
+                assertEquals(SyntheticContent.activityId(n), c.getString(0));
+        } finally {
+            c.close();
+        }
+
+        // One notification per new entry
+        HashSet<Uri> notified = new HashSet<Uri>();
+        for(Intent intent : m_context.getBroadcasts())
+            assertTrue(notified.add((Uri) intent.getParcelableExtra("contentUri")));
+        assertEquals(last, notified.size());
+    }
+
+    private String getRequestUrl(int index) {
+        return m_transport.getRequests().get(index).getUrl().toString();
+    }
+
+    public void testFirstSyncFetchesNewestPage() throws Exception {
+        JSONObject newest = getPage(INBOX - PAGE_SIZE);
+        newest.remove("links");
+        m_transport.respond(Uri.parse(getUrl("/api/user/" + USERNAME + "/inbox")).buildUpon()
+                .appendQueryParameter("count", String.valueOf(PAGE_SIZE)).build().toString(),
+                200, newest.toString());
+
+        SyncResult result = sync();
+        assertFalse(result.moreRecordsToGet);
+        assertEquals(1, m_transport.getRequests().size());
+        assertEquals(PAGE_SIZE, count(getFeedUri(m_account.name)));
+        assertEquals(SyntheticContent.activityId(INBOX), getJournal().getHead());
+        assertNull(getJournal().getNext());
+    }
+
+    public void testWalksPrevLinks() throws Exception {
+        getJournal().checkpoint(SyntheticContent.activityId(0), null);
+
+        // Each sync fetches MAX_PAGES pages, then leaves the rest for the next
+        int synced = 0;
+        for(int run = 0; synced < INBOX; run++) {
+            assertTrue("Sync never finished", run < 3);
+            int requests = m_transport.getRequests().size();
+
+            SyncResult result = sync();
+            assertEquals(0, result.stats.numIoExceptions);
+            assertEquals(getPageUrl(synced), getRequestUrl(requests));
+            synced = Math.min(INBOX, synced + MAX_PAGES * PAGE_SIZE);
+            assertEquals(synced < INBOX, result.moreRecordsToGet);
+            assertFeed(synced);
+        }
+
+        // The walk ended at the empty page after the newest activity
+        assertEquals(getPageUrl(INBOX), getRequestUrl(m_transport.getRequests().size() - 1));
+        assertEquals(INBOX / PAGE_SIZE + 1, m_transport.getRequests().size());
+        assertEquals(SyntheticContent.activityId(INBOX), getJournal().getHead());
+        assertNull(getJournal().getNext());
+
+        // Which is where the next sync starts
+        sync();
+        assertEquals(getPageUrl(INBOX), getRequestUrl(m_transport.getRequests().size() - 1));
+        assertFeed(INBOX);
+    }
+
+    public void testResumesAfterFailure() throws Exception {
+        getJournal().checkpoint(SyntheticContent.activityId(0), null);
+        int failed = 5 * PAGE_SIZE;
+        m_transport.failNext(getPageUrl(failed), 1);
+
+        SyncResult result = sync();
+        assertEquals(1, result.stats.numIoExceptions);
+        assertFeed(failed);
+        assertEquals(SyntheticContent.activityId(failed), getJournal().getHead());
+        assertEquals(getPageUrl(failed), getJournal().getNext());
+
+        // A new adapter, as after the process died, picks up at the page which failed
+        int requests = m_transport.getRequests().size();
+        result = sync();
+        assertEquals(0, result.stats.numIoExceptions);
+        assertTrue(result.moreRecordsToGet);
+        assertEquals(getPageUrl(failed), getRequestUrl(requests));
+        assertFeed(failed + MAX_PAGES * PAGE_SIZE);
+    }
+
+    /** A crash after a page was written but before it was checkpointed means fetching it
+     *  again, which must carry on the walk even though the server could answer 304 */
+    public void testRefetchedPageContinuesWalk() throws Exception {
+        for(int since = 0; since <= INBOX; since += PAGE_SIZE) {
+            m_transport.respond(getPageUrl(since), 200,
+                    Collections.singletonMap("ETag", "\"" + since + "\""),
+                    getPage(since).toString());
+        }
+        getJournal().checkpoint(SyntheticContent.activityId(0), null);
+        sync();
+
+        // Back to before the first page was checkpointed
+        m_syncState.edit().clear().commit();
+        getJournal().checkpoint(SyntheticContent.activityId(0), null);
+        int requests = m_transport.getRequests().size();
+
+        SyncResult result = sync();
+        assertTrue(result.moreRecordsToGet);
+        assertEquals(requests + MAX_PAGES, m_transport.getRequests().size());
+        for(Request request : m_transport.getRequests())
+            assertNull(request.getHeaders().get("If-None-Match"));
+        assertEquals(getPageUrl(MAX_PAGES * PAGE_SIZE), getJournal().getNext());
+        assertEquals(MAX_PAGES * PAGE_SIZE, count(getFeedUri(m_account.name)));
+    }
+}
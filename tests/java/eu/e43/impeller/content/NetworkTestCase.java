@@ -0,0 +1,74 @@
+package eu.e43.impeller.content;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.e43.impeller.account.Authenticator;
+import eu.e43.impeller.account.OAuth;
+import eu.e43.impeller.net.MockTransport;
+import eu.e43.impeller.net.Transport;
+
+/**
+ * A ContentTestCase with an account on SyntheticContent.HOST, whose server is m_transport.
+ *
+ * The account's credentials are dummies, which is fine as the MockTransport doesn't check
+ * signatures; it isn't synced by the system while the test runs.
+ */
+public abstract class NetworkTestCase extends ContentTestCase {
+    protected static final String USERNAME = "test";
+
+    protected Account       m_account;
+    protected MockTransport m_transport;
+
+    private final List<Account> m_accounts = new ArrayList<Account>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_account = addAccount(USERNAME);
+
+        m_transport = new MockTransport();
+        Transport.set(m_transport);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Transport.set(null);
+        for(Account account : m_accounts) {
+            OAuth.invalidate(account);
+            AccountManager.get(m_context).removeAccount(account, null, null).getResult();
+        }
+        super.tearDown();
+    }
+
+    /** Adds an account for username on SyntheticContent.HOST, removed again by tearDown */
+    protected Account addAccount(String username) {
+        Account account = new Account(username + "@" + SyntheticContent.HOST,
+                Authenticator.ACCOUNT_TYPE);
+
+        Bundle userData = new Bundle();
+        userData.putString("username",      username);
+        userData.putString("host",          SyntheticContent.HOST);
+        userData.putString("id",            "acct:" + account.name);
+        userData.putString("clientId",      "client");
+        userData.putString("clientSecret",  "clientSecret");
+        userData.putString("token",         "token");
+        userData.putString("tokenSecret",   "tokenSecret");
+        AccountManager.get(m_context).addAccountExplicitly(account, "(Ignored)", userData);
+        ContentResolver.setIsSyncable(account, PumpContentProvider.AUTHORITY, 0);
+        OAuth.invalidate(account);
+
+        m_accounts.add(account);
+        return account;
+    }
+
+    /** The URL of path on the account's server */
+    protected static String getUrl(String path) {
+        return "https://" + SyntheticContent.HOST + path;
+    }
+}
@@ -0,0 +1,64 @@
+package eu.e43.impeller.content;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Times the re-sync of an inbox page which is already stored, as happens with overlapping
+ * pages and retried syncs. Every row then exists, and nothing in it has changed.
+ */
+@LargeTest
+public class ResyncTest extends ContentTestCase {
+    private static final String TAG     = "ResyncTest";
+    private static final String ACCOUNT = "test@" + SyntheticContent.HOST;
+    private static final int    PAGE    = 200;
+    private static final int    RUNS    = 5;
+
+    /** Ingest the page in one batch, as the sync adapter does, returning the time taken */
+    private long ingestPage(Uri feed) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        boolean successful = false;
+        m_provider.beginBatch();
+        try {
+            for(int n = 0; n < PAGE; n++)
+                m_provider.ingest(feed, SyntheticContent.activity(n));
+            successful = true;
+        } finally {
+            m_provider.endBatch(successful);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    public void testResyncKnownPage() throws Exception {
+        Uri feed = getFeedUri(ACCOUNT);
+        Uri activities = Uri.parse(PumpContentProvider.ACTIVITY_URL);
+        Uri objects = Uri.parse(PumpContentProvider.OBJECT_URL);
+
+        long first = ingestPage(feed);
+        int activityRows = count(activities);
+        int objectRows   = count(objects);
+        assertEquals(PAGE, count(feed));
+
+        long[] times = new long[RUNS];
+        for(int run = 0; run < RUNS; run++)
+            times[run] = ingestPage(feed);
+        Arrays.sort(times);
+        long resync = times[RUNS / 2];
+
+        Log.i(TAG, "Page of " + PAGE + " activities: " + first + "ms to ingest, " + resync
+                + "ms (median of " + RUNS + ") to ingest again");
+
+        // Nothing was added
+        assertEquals(PAGE,         count(feed));
+        assertEquals(activityRows, count(activities));
+        assertEquals(objectRows,   count(objects));
+
+        // Nothing needs writing the second time, so it costs less than the first
+        assertTrue("Re-sync took " + resync + "ms, the first ingest " + first + "ms",
+                resync < first);
+    }
+}
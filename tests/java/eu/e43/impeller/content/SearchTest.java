@@ -0,0 +1,94 @@
+package eu.e43.impeller.content;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Times searches of a 100,000 object corpus (90,000 notes and 10,000 people), which must take
+ * under 50ms. Building the corpus takes a while, so one test covers every query.
+ */
+@LargeTest
+public class SearchTest extends ContentTestCase {
+    private static final String TAG         = "SearchTest";
+    private static final int    NOTES       = 90000;
+    private static final int    PEOPLE      = 10000;
+    private static final int    BATCH       = 1000;
+    private static final int    RUNS        = 5;
+    private static final long   BUDGET      = 50;
+
+    private void buildCorpus() throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        Uri objects = Uri.parse(PumpContentProvider.OBJECT_URL);
+        for(int first = 0; first < NOTES + PEOPLE; first += BATCH) {
+            m_provider.beginBatch();
+            boolean successful = false;
+            try {
+                for(int n = first; n < first + BATCH; n++) {
+                    m_provider.ingest(objects, n < NOTES
+                            ? SyntheticContent.note(n) : SyntheticContent.person(n - NOTES));
+                }
+                successful = true;
+            } finally {
+                m_provider.endBatch(successful);
+            }
+        }
+        Log.i(TAG, "Built corpus of " + (NOTES + PEOPLE) + " objects in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    private static Uri getSearchUri(String q, int limit) {
+        return Uri.parse(PumpContentProvider.SEARCH_URL).buildUpon()
+                .appendQueryParameter("q", q)
+                .appendQueryParameter("limit", String.valueOf(limit))
+                .build();
+    }
+
+    /** Run the search RUNS times, checking its results and that its median time is in budget */
+    private void assertSearch(String q, int limit, int expected) {
+        Uri uri = getSearchUri(q, limit);
+        long[] times = new long[RUNS];
+        for(int run = 0; run < RUNS; run++) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor c = m_provider.query(uri, new String[] { "_ID", "id", "rank" }, null, null, null);
+            try {
+                int count = c.getCount();
+                times[run] = SystemClock.elapsedRealtime() - start;
+
+                assertEquals("Results for \"" + q + "\"", expected, count);
+                int previous = Integer.MAX_VALUE;
+                while(c.moveToNext()) {
+                    int rank = c.getInt(2);
+                    assertTrue("Results for \"" + q + "\" not ranked", rank <= previous);
+                    previous = rank;
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        Arrays.sort(times);
+        long median = times[RUNS / 2];
+        Log.i(TAG, "\"" + q + "\" (limit " + limit + "): median " + median + "ms, worst "
+                + times[RUNS - 1] + "ms");
+        assertTrue("\"" + q + "\" took " + median + "ms", median < BUDGET);
+    }
+
+    public void testSearch() throws Exception {
+        buildCorpus();
+
+        // One note in 1000, and one in 100
+        assertSearch(SyntheticContent.RARE_WORD,   100, NOTES / 1000);
+        assertSearch(SyntheticContent.MEDIUM_WORD,  50, 50);
+        assertSearch(SyntheticContent.MEDIUM_WORD + " " + SyntheticContent.RARE_WORD,
+                100, NOTES / 1000);
+
+        // People, by username prefix: user1234 is one person, user123 also prefixes user1230-9
+        assertSearch("user1234", 50, 1);
+        assertSearch("user123",  50, 11);
+    }
+}
@@ -0,0 +1,98 @@
+package eu.e43.impeller.content;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Counts the SQL statements ingesting an inbox page takes, the first time and again once it
+ * is stored, against what the old per-row ingest took for the same page: for every object
+ * node a lookup to merge with, then an insert, or a failed insert and an update if the row
+ * existed; the same again for the activity row, and a feed entry insert.
+ */
+@MediumTest
+public class StatementCountTest extends ContentTestCase {
+    private static final String TAG     = "StatementCountTest";
+    private static final String ACCOUNT = "test@" + SyntheticContent.HOST;
+    private static final int    PAGE    = 200;
+
+    /** Ingest the page in one batch, as the sync adapter does, returning its statistics */
+    private IngestBatch ingestPage(Uri feed) throws Exception {
+        boolean successful = false;
+        m_provider.beginBatch();
+        IngestBatch batch = m_provider.getBatch();
+        try {
+            for(int n = 0; n < PAGE; n++)
+                m_provider.ingest(feed, SyntheticContent.activity(n));
+            successful = true;
+        } finally {
+            m_provider.endBatch(successful);
+        }
+        return batch;
+    }
+
+    /** Statements the per-row ingest took for an object and those it embeds */
+    private static int perRowObject(JSONObject obj, Set<String> stored) {
+        if(obj == null)
+            return 0;
+
+        int statements = perRowObject(obj.optJSONObject("author"), stored)
+                       + perRowObject(obj.optJSONObject("inReplyTo"), stored);
+        statements++; // Lookup
+        statements += stored.add(obj.optString("id")) ? 1 : 2;
+        return statements;
+    }
+
+    /** Statements the per-row ingest took for a feed activity */
+    private static int perRowActivity(JSONObject act, Set<String> objects, Set<String> activities)
+            throws JSONException {
+        int statements = 1; // Lookup of the activity, to merge with
+
+        JSONObject obj = act.optJSONObject("object");
+        if(obj != null && !obj.has("author") && "post".equals(act.optString("verb", "post")))
+            obj.put("author", act.optJSONObject("actor"));
+
+        statements += perRowObject(act.optJSONObject("actor"), objects);
+        statements += perRowObject(obj, objects);
+        statements += perRowObject(act.optJSONObject("target"), objects);
+        statements += activities.add(act.getString("id")) ? 1 : 2;
+
+        if(!act.has("author"))
+            act.put("author", act.opt("actor"));
+        statements += perRowObject(act, objects);
+
+        return statements + 1; // Feed entry
+    }
+
+    public void testStatementsPerPage() throws Exception {
+        Uri feed = getFeedUri(ACCOUNT);
+
+        Set<String> objects = new HashSet<String>();
+        Set<String> activities = new HashSet<String>();
+        int firstBaseline = 0;
+        for(int n = 0; n < PAGE; n++)
+            firstBaseline += perRowActivity(SyntheticContent.activity(n), objects, activities);
+        int resyncBaseline = 0;
+        for(int n = 0; n < PAGE; n++)
+            resyncBaseline += perRowActivity(SyntheticContent.activity(n), objects, activities);
+
+        IngestBatch first  = ingestPage(feed);
+        IngestBatch resync = ingestPage(feed);
+
+        Log.i(TAG, "Page of " + PAGE + " activities: " + first.statements + " statements ("
+                + firstBaseline + " per row) to ingest, " + resync.statements + " ("
+                + resyncBaseline + " per row) to ingest again");
+
+        assertEquals(0, resync.rowsWritten);
+        assertTrue("Ingest took " + first.statements + " statements, per row "
+                + firstBaseline, first.statements < firstBaseline);
+        assertTrue("Re-sync took " + resync.statements + " statements, per row "
+                + resyncBaseline, resync.statements * 2 < resyncBaseline);
+    }
+}
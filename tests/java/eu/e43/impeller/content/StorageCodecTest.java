@@ -0,0 +1,140 @@
+package eu.e43.impeller.content;
+
+import android.content.Context;
+import android.database.CrossProcessCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * The database size and FEED query cost of a SyntheticContent inbox, stored as plain JSON and
+ * through JsonCodec (with embedded objects stored once, by ObjectHydrator).
+ *
+ * Also logs how many feed rows fit in a CursorWindow sent to a client: the window holds the
+ * decoded text either way, so the codec doesn't change that.
+ */
+@LargeTest
+public class StorageCodecTest extends ContentTestCase {
+    private static final String TAG        = "StorageCodecTest";
+    private static final String ACCOUNT    = "test@" + SyntheticContent.HOST;
+    private static final int    ACTIVITIES = 2000;
+    private static final int    BATCH      = 200;
+    private static final int    PAGE       = 50;
+    private static final int    RUNS       = 5;
+
+    private static class Storage {
+        long bytes;
+        long pageMillis;
+        long scanMillis;
+        int  windowRows;
+
+        @Override
+        public String toString() {
+            return bytes / 1024 + "KB, " + pageMillis + "ms per page of " + PAGE + ", "
+                    + scanMillis + "ms for all " + ACTIVITIES + ", " + windowRows
+                    + " rows per window";
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        JsonCodec.setEnabled(true);
+    }
+
+    /** Read every column of every row of the feed query uri, returning the time taken */
+    private long readFeed(Uri uri, int expected) {
+        long start = SystemClock.elapsedRealtime();
+        Cursor c = m_provider.query(uri, null, null, null, null);
+        try {
+            int json = c.getColumnIndexOrThrow("_json");
+            int rows = 0;
+            while(c.moveToNext()) {
+                assertTrue(c.getString(json).length() > 0);
+                rows++;
+            }
+            assertEquals(expected, rows);
+        } finally {
+            c.close();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /** Rows of the feed which fit in one window, as sent to a client in another process */
+    @SuppressWarnings("deprecation")
+    private int getWindowRows(Uri feed) {
+        Cursor c = m_provider.query(feed, null, null, null, null);
+        CursorWindow window = new CursorWindow(false);
+        try {
+            ((CrossProcessCursor) c).fillWindow(0, window);
+            return window.getNumRows();
+        } finally {
+            window.close();
+            c.close();
+        }
+    }
+
+    /** Store the inbox in a new database, encoded or not, and measure it */
+    private Storage measure(boolean encoded) throws Exception {
+        m_provider.shutdown();
+        m_context.deleteDatabase(PumpDatabaseHelper.NAME);
+        JsonCodec.setEnabled(encoded);
+
+        // Nothing for the background migration to do, so that it doesn't skew the timings
+        m_context.getSharedPreferences("PumpContentProvider", Context.MODE_PRIVATE).edit()
+                .putBoolean("jsonEncoded", true)
+                .putBoolean("searchIndexed", true)
+                .commit();
+        openProvider();
+
+        Uri feed = getFeedUri(ACCOUNT);
+        for(int first = 0; first < ACTIVITIES; first += BATCH) {
+            boolean successful = false;
+            m_provider.beginBatch();
+            try {
+                for(int n = first; n < first + BATCH; n++)
+                    m_provider.ingest(feed, SyntheticContent.activity(n));
+                successful = true;
+            } finally {
+                m_provider.endBatch(successful);
+            }
+        }
+
+        // Closing the database checkpoints its write-ahead log into the file
+        m_provider.shutdown();
+        Storage storage = new Storage();
+        storage.bytes = m_context.getDatabasePath(PumpDatabaseHelper.NAME).length();
+        openProvider();
+
+        Uri page = feed.buildUpon().appendQueryParameter("limit", String.valueOf(PAGE)).build();
+        long[] times = new long[RUNS];
+        for(int run = 0; run < RUNS; run++)
+            times[run] = readFeed(page, PAGE);
+        Arrays.sort(times);
+        storage.pageMillis = times[RUNS / 2];
+        storage.scanMillis = readFeed(feed, ACTIVITIES);
+        storage.windowRows = getWindowRows(feed);
+        return storage;
+    }
+
+    public void testStorage() throws Exception {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The codec is never used
+            return;
+        }
+
+        Storage plain   = measure(false);
+        Storage encoded = measure(true);
+        Log.i(TAG, "Plain JSON: " + plain);
+        Log.i(TAG, "JsonCodec:  " + encoded);
+
+        assertTrue("Encoded database (" + encoded.bytes + " bytes) not smaller than plain ("
+                + plain.bytes + " bytes)", encoded.bytes < plain.bytes);
+    }
+}
@@ -0,0 +1,101 @@
+package eu.e43.impeller.content;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Deterministic pump.io-like documents, for tests and timings.
+ *
+ * Activity n is person (n % PEOPLE) posting note n, published n minutes after the start of
+ * 2014. Notes are a dozen words from a small vocabulary; every 100th also contains
+ * MEDIUM_WORD, and every 1000th RARE_WORD.
+ */
+final class SyntheticContent {
+    static final String HOST        = "example.com";
+    static final int    PEOPLE      = 100;
+    static final String MEDIUM_WORD = "quokka";
+    static final String RARE_WORD   = "zephyr";
+
+    /* 2014-01-01T00:00:00Z */
+    private static final long EPOCH = 1388534400000L;
+
+    private static final String[] WORDS = {
+            "the", "pump", "stream", "note", "comment", "server", "federated", "social", "network",
+            "today", "tomorrow", "yesterday", "coffee", "morning", "evening", "weather", "rain",
+            "sunny", "music", "album", "concert", "photo", "picture", "camera", "travel", "train",
+            "station", "city", "river", "mountain", "walk", "garden", "flowers", "book", "reading",
+            "library", "code", "release", "android", "phone", "battery", "update", "friends",
+            "family", "dinner", "kitchen", "recipe", "bread", "cheese", "tea",
+    };
+
+    private SyntheticContent() {
+    }
+
+    static String personId(int n) {
+        return "acct:user" + n + "@" + HOST;
+    }
+
+    static String noteId(int n) {
+        return "https://" + HOST + "/api/note/" + n;
+    }
+
+    static String activityId(int n) {
+        return "https://" + HOST + "/api/activity/" + n;
+    }
+
+    static String date(int n) {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(new Date(EPOCH + n * 60 * 1000L));
+    }
+
+    static String text(int n) {
+        Random random = new Random(n);
+        StringBuilder sb = new StringBuilder("<p>");
+        for(int i = 0; i < 12; i++) {
+            if(i > 0)
+                sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        if(n % 100 == 0)
+            sb.append(' ').append(MEDIUM_WORD);
+        if(n % 1000 == 0)
+            sb.append(' ').append(RARE_WORD);
+        return sb.append("</p>").toString();
+    }
+
+    static JSONObject person(int n) throws JSONException {
+        return new JSONObject()
+                .put("id",                personId(n))
+                .put("objectType",        "person")
+                .put("displayName",       "User " + n)
+                .put("preferredUsername", "user" + n)
+                .put("image", new JSONObject()
+                        .put("url", "https://" + HOST + "/avatar/" + n + ".png"));
+    }
+
+    static JSONObject note(int n) throws JSONException {
+        return new JSONObject()
+                .put("id",          noteId(n))
+                .put("objectType",  "note")
+                .put("content",     text(n))
+                .put("published",   date(n))
+                .put("author",      person(n % PEOPLE));
+    }
+
+    static JSONObject activity(int n) throws JSONException {
+        return new JSONObject()
+                .put("id",          activityId(n))
+                .put("objectType",  "activity")
+                .put("verb",        "post")
+                .put("published",   date(n))
+                .put("actor",       person(n % PEOPLE))
+                .put("object",      note(n));
+    }
+}
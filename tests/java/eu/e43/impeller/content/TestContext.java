@@ -0,0 +1,58 @@
+package eu.e43.impeller.content;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A context for tests, kept apart from the app's own state.
+ *
+ * Its databases and preferences are prefixed with "test.", its content resolver only reaches
+ * the providers added to it, and broadcasts sent through it are recorded instead of sent.
+ */
+class TestContext extends RenamingDelegatingContext {
+    static final String PREFIX = "test.";
+
+    private final MockContentResolver m_resolver   = new MockContentResolver();
+    private final List<Intent>        m_broadcasts = new ArrayList<Intent>();
+
+    TestContext(Context context) {
+        super(context, PREFIX);
+    }
+
+    void addProvider(String authority, ContentProvider provider) {
+        m_resolver.addProvider(authority, provider);
+    }
+
+    /** The broadcasts sent so far, oldest first */
+    synchronized List<Intent> getBroadcasts() {
+        return new ArrayList<Intent>(m_broadcasts);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return m_resolver;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return super.getSharedPreferences(PREFIX + name, mode);
+    }
+
+    @Override
+    public synchronized void sendBroadcast(Intent intent) {
+        m_broadcasts.add(intent);
+    }
+}
@@ -0,0 +1,93 @@
+package eu.e43.impeller.net;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+/**
+ * The policy for each network class under each data saver setting.
+ */
+@SmallTest
+public class BandwidthPolicyTest extends TestCase {
+    private static final int[] NETWORKS = {
+            BandwidthPolicy.NETWORK_UNMETERED,
+            BandwidthPolicy.NETWORK_METERED,
+            BandwidthPolicy.NETWORK_ROAMING,
+    };
+
+    private static final JSONObject THUMB = new JSONObject();
+    private static final JSONObject FULL  = new JSONObject();
+
+    private static void assertPolicy(int network, String saver, int expected) throws Exception {
+        String name = "network " + network + ", saver " + saver;
+        BandwidthPolicy policy = new BandwidthPolicy(network, saver);
+        assertEquals(name, expected, policy.getNetwork());
+
+        switch(expected) {
+            case BandwidthPolicy.NETWORK_UNMETERED:
+                assertFalse(name, policy.isSavingData());
+                assertEquals(name, 200, policy.getSyncPageSize());
+                assertEquals(name, 10,  policy.getMaxSyncPages());
+                assertTrue(name, policy.allowBackgroundMedia());
+                break;
+
+            case BandwidthPolicy.NETWORK_METERED:
+                assertTrue(name, policy.isSavingData());
+                assertEquals(name, 50,  policy.getSyncPageSize());
+                assertEquals(name, 4,   policy.getMaxSyncPages());
+                assertTrue(name, policy.allowBackgroundMedia());
+                break;
+
+            case BandwidthPolicy.NETWORK_ROAMING:
+                assertTrue(name, policy.isSavingData());
+                assertEquals(name, 20,  policy.getSyncPageSize());
+                assertEquals(name, 1,   policy.getMaxSyncPages());
+                assertFalse(name, policy.allowBackgroundMedia());
+                break;
+        }
+
+        JSONObject both = new JSONObject().put("image", THUMB).put("fullImage", FULL);
+        assertSame(name, policy.isSavingData() ? THUMB : FULL, policy.getImage(both));
+
+        // Falls back to whichever image there is
+        assertSame(name, THUMB, policy.getImage(new JSONObject().put("image", THUMB)));
+        assertSame(name, FULL,  policy.getImage(new JSONObject().put("fullImage", FULL)));
+        assertNull(name, policy.getImage(new JSONObject()));
+    }
+
+    public void testAuto() throws Exception {
+        for(int network : NETWORKS)
+            assertPolicy(network, BandwidthPolicy.SAVER_AUTO, network);
+    }
+
+    public void testAlways() throws Exception {
+        assertPolicy(BandwidthPolicy.NETWORK_UNMETERED, BandwidthPolicy.SAVER_ALWAYS,
+                BandwidthPolicy.NETWORK_METERED);
+        assertPolicy(BandwidthPolicy.NETWORK_METERED,   BandwidthPolicy.SAVER_ALWAYS,
+                BandwidthPolicy.NETWORK_METERED);
+        assertPolicy(BandwidthPolicy.NETWORK_ROAMING,   BandwidthPolicy.SAVER_ALWAYS,
+                BandwidthPolicy.NETWORK_ROAMING);
+    }
+
+    public void testNever() throws Exception {
+        for(int network : NETWORKS)
+            assertPolicy(network, BandwidthPolicy.SAVER_NEVER, BandwidthPolicy.NETWORK_UNMETERED);
+    }
+
+    /** An unknown setting, e.g. from a newer version, behaves as auto */
+    public void testUnknownSaver() throws Exception {
+        for(int network : NETWORKS)
+            assertPolicy(network, "sometimes", network);
+    }
+
+    public void testFullImageUnderPumpIo() throws Exception {
+        JSONObject obj = new JSONObject()
+                .put("image",   THUMB)
+                .put("pump_io", new JSONObject().put("fullImage", FULL));
+        assertSame(FULL, BandwidthPolicy.getFullImage(obj));
+        assertSame(FULL, new BandwidthPolicy(BandwidthPolicy.NETWORK_UNMETERED,
+                BandwidthPolicy.SAVER_AUTO).getImage(obj));
+    }
+}
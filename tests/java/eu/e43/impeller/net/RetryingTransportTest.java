@@ -0,0 +1,233 @@
+package eu.e43.impeller.net;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+
+/**
+ * Retries, the circuit breaker and its recovery, against a MockTransport. The delays are
+ * shortened to a millisecond of back-off and a cool-down of up to 200ms.
+ */
+@MediumTest
+public class RetryingTransportTest extends TestCase {
+    private static final String URL   = "https://example.com/api/user/test/inbox";
+    private static final String OTHER = "https://example.org/api/user/test/inbox";
+
+    private MockTransport      m_mock;
+    private RetryingTransport  m_transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_mock      = new MockTransport();
+        m_transport = new RetryingTransport(m_mock, 1, 200);
+        m_mock.respond(URL,   200, "{}");
+        m_mock.respond(OTHER, 200, "{}");
+    }
+
+    private Response get(String url) throws IOException {
+        return m_transport.execute(new Request(new URL(url)));
+    }
+
+    private Response post(String url) throws IOException {
+        return m_transport.execute(new Request(new URL(url))
+                .post("application/json", Request.bytes("{}".getBytes("UTF-8"))));
+    }
+
+    /** Fail enough requests to open the breaker for URL */
+    private HostUnavailableException open() throws IOException {
+        m_mock.failNext(URL, 3);
+        try {
+            get(URL);
+            fail("Request succeeded");
+        } catch(HostUnavailableException e) {
+            fail("Failed fast before trying");
+        } catch(IOException e) {
+            // Expected
+        }
+
+        try {
+            get(URL);
+            fail("Breaker didn't open");
+            return null;
+        } catch(HostUnavailableException e) {
+            return e;
+        }
+    }
+
+    /** Wait out the cool-down reported by e */
+    private static void waitFor(HostUnavailableException e) throws InterruptedException {
+        Thread.sleep(Math.max(0, e.getRetryTime() - System.currentTimeMillis()) + 20);
+    }
+
+    public void testRetriesFailedGet() throws Exception {
+        m_mock.failNext(URL, 2);
+        Response res = get(URL);
+        assertEquals(200, res.getStatus());
+        assertEquals(3, m_mock.getRequests().size());
+    }
+
+    public void testGivesUpAfterRetries() throws Exception {
+        m_mock.failNext(URL, 3);
+        try {
+            get(URL);
+            fail("Request succeeded");
+        } catch(IOException e) {
+            assertFalse(e instanceof HostUnavailableException);
+        }
+        assertEquals(3, m_mock.getRequests().size());
+    }
+
+    public void testDoesNotRetryTimeout() throws Exception {
+        final int[] attempts = { 0 };
+        m_transport = new RetryingTransport(new Transport() {
+            @Override
+            public Response execute(Request request) throws IOException {
+                attempts[0]++;
+                throw new SocketTimeoutException("Read timed out");
+            }
+        }, 1, 200);
+
+        for(int i = 1; i <= 3; i++) {
+            try {
+                get(URL);
+                fail("Request succeeded");
+            } catch(SocketTimeoutException e) {
+                // Expected
+            }
+            assertEquals(i, attempts[0]);
+        }
+
+        // Timeouts still count towards the breaker
+        try {
+            get(URL);
+            fail("Breaker didn't open");
+        } catch(HostUnavailableException e) {
+            // Expected
+        }
+        assertEquals(3, attempts[0]);
+    }
+
+    public void testRetriesOverloadedGet() throws Exception {
+        m_mock.respond(URL, 503, "");
+        Response res = get(URL);
+        assertEquals(503, res.getStatus());
+        assertEquals(3, m_mock.getRequests().size());
+    }
+
+    public void testDoesNotRetryPost() throws Exception {
+        m_mock.failNext(URL, 1);
+        try {
+            post(URL);
+            fail("Request succeeded");
+        } catch(IOException e) {
+            // Expected
+        }
+        assertEquals(1, m_mock.getRequests().size());
+    }
+
+    public void testBreakerOpensAfterThreeFailures() throws Exception {
+        HostUnavailableException e = open();
+        assertEquals("example.com", e.getHost());
+        assertTrue(e.getRetryTime() > System.currentTimeMillis());
+
+        // Failing fast doesn't contact the host
+        assertEquals(3, m_mock.getRequests().size());
+
+        // Other hosts are unaffected
+        assertEquals(200, get(OTHER).getStatus());
+    }
+
+    public void testSuccessResetsFailures() throws Exception {
+        m_mock.failNext(URL, 2);
+        get(URL);
+
+        // Two more failures aren't three in a row
+        m_mock.failNext(URL, 2);
+        assertEquals(200, get(URL).getStatus());
+        assertEquals(6, m_mock.getRequests().size());
+    }
+
+    public void testRetryAfter() throws Exception {
+        m_mock.respond(URL, 503, Collections.singletonMap("Retry-After", "1"), "");
+        assertEquals(503, post(URL).getStatus());
+
+        // A single answer with a Retry-After opens the breaker for as long as it asks
+        HostUnavailableException e = null;
+        try {
+            get(URL);
+            fail("Retry-After ignored");
+        } catch(HostUnavailableException unavailable) {
+            e = unavailable;
+        }
+        assertTrue(e.getRetryTime() - System.currentTimeMillis() > 500);
+        assertEquals(1, m_mock.getRequests().size());
+
+        m_mock.respond(URL, 200, "{}");
+        waitFor(e);
+        assertEquals(200, get(URL).getStatus());
+    }
+
+    public void testProbeRecovers() throws Exception {
+        waitFor(open());
+
+        // The probe succeeds, which closes the breaker
+        assertEquals(200, get(URL).getStatus());
+        assertEquals(200, get(URL).getStatus());
+        assertEquals(5, m_mock.getRequests().size());
+    }
+
+    public void testFailedProbeReopens() throws Exception {
+        waitFor(open());
+
+        m_mock.failNext(URL, 1);
+        try {
+            post(URL);
+            fail("Request succeeded");
+        } catch(HostUnavailableException e) {
+            fail("Probe not let through");
+        } catch(IOException e) {
+            // Expected
+        }
+
+        // One failed probe is enough to reopen it
+        try {
+            get(URL);
+            fail("Breaker didn't reopen");
+        } catch(HostUnavailableException e) {
+            // Expected
+        }
+        assertEquals(4, m_mock.getRequests().size());
+    }
+
+    public void testAbandonedProbe() throws Exception {
+        final boolean[] crash = { false };
+        m_transport = new RetryingTransport(new Transport() {
+            @Override
+            public Response execute(Request request) throws IOException {
+                if(crash[0]) {
+                    crash[0] = false;
+                    throw new IllegalStateException("Signing failed");
+                }
+                return m_mock.execute(request);
+            }
+        }, 1, 200);
+        waitFor(open());
+
+        crash[0] = true;
+        try {
+            get(URL);
+            fail("Request succeeded");
+        } catch(IllegalStateException e) {
+            // Expected
+        }
+
+        // The next request may still probe the host
+        assertEquals(200, get(URL).getStatus());
+    }
+}
@@ -0,0 +1,163 @@
+package eu.e43.impeller.uikit;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import eu.e43.impeller.Utils;
+
+/**
+ * Peak Java heap while decoding a large JPEG: read into a byte[] and decoded from it, as
+ * images used to be, against decoded from the disk cache file's descriptor.
+ */
+@LargeTest
+public class ImageDecodeHeapTest extends AndroidTestCase {
+    private static final String TAG    = "ImageDecodeHeapTest";
+    private static final int    BUCKET = 1024;
+
+    /* Noise barely compresses, so this is a JPEG of around 10MB */
+    private static final int    WIDTH  = 2560;
+    private static final int    HEIGHT = 1920;
+
+    private File m_jpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_jpeg = new File(getContext().getCacheDir(), "test.large.jpg");
+
+        Bitmap noise = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        Random random = new Random(0);
+        int[] row = new int[WIDTH];
+        for(int y = 0; y < HEIGHT; y++) {
+            for(int x = 0; x < WIDTH; x++)
+                row[x] = 0xff000000 | random.nextInt();
+            noise.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(m_jpeg));
+        try {
+            assertTrue(noise.compress(Bitmap.CompressFormat.JPEG, 100, out));
+        } finally {
+            out.close();
+            noise.recycle();
+        }
+        Log.i(TAG, "JPEG of " + m_jpeg.length() + " bytes");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_jpeg.delete();
+        super.tearDown();
+    }
+
+    /** The largest heap use seen while it runs */
+    private static class HeapSampler extends Thread {
+        private volatile boolean m_running = true;
+        private volatile long    m_peak;
+
+        static long used() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        @Override
+        public void run() {
+            while(m_running) {
+                m_peak = Math.max(m_peak, used());
+                try {
+                    Thread.sleep(1);
+                } catch(InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() throws InterruptedException {
+            m_running = false;
+            join();
+            return Math.max(m_peak, used());
+        }
+    }
+
+    private interface Decoder {
+        Bitmap decode() throws Exception;
+    }
+
+    /** Peak heap growth while decoder runs */
+    private static long measure(String name, Decoder decoder) throws Exception {
+        System.gc();
+        System.runFinalization();
+        System.gc();
+        long base = HeapSampler.used();
+
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        Bitmap bmp = decoder.decode();
+        long peak = sampler.finish() - base;
+
+        assertNotNull(name + " failed", bmp);
+        Log.i(TAG, name + ": peak heap growth " + peak / 1024 + "KB decoding to "
+                + bmp.getWidth() + "x" + bmp.getHeight());
+        bmp.recycle();
+        return peak;
+    }
+
+    /** As images were decoded before they were streamed into the disk cache */
+    private Bitmap decodeBuffered() throws Exception {
+        FileInputStream in = new FileInputStream(m_jpeg);
+        final byte[] compressed;
+        try {
+            compressed = Utils.readAllBytes(in);
+        } finally {
+            in.close();
+        }
+
+        return ImageLoader.decode(new ImageLoader.ImageSource() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options opts) {
+                return BitmapFactory.decodeStream(new ByteArrayInputStream(compressed), null, opts);
+            }
+        }, BUCKET);
+    }
+
+    private Bitmap decodeFile() throws Exception {
+        FileInputStream in = new FileInputStream(m_jpeg);
+        try {
+            return ImageLoader.decode(new ImageLoader.FileSource(in), BUCKET);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testPeakHeap() throws Exception {
+        long buffered = measure("byte[]", new Decoder() {
+            @Override
+            public Bitmap decode() throws Exception {
+                return decodeBuffered();
+            }
+        });
+        long file = measure("file descriptor", new Decoder() {
+            @Override
+            public Bitmap decode() throws Exception {
+                return decodeFile();
+            }
+        });
+
+        // The buffered path holds at least the compressed image, and likely two copies of it
+        Log.i(TAG, "Saved " + (buffered - file) / 1024 + "KB of peak heap on a "
+                + m_jpeg.length() / 1024 + "KB JPEG");
+        assertTrue("Decoding from the file used " + file + " bytes, from a byte[] " + buffered,
+                buffered - file > m_jpeg.length() / 2);
+    }
+}